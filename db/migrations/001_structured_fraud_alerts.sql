@@ -0,0 +1,10 @@
+CREATE TYPE fraud_rule AS ENUM ('HIGH_AMOUNT', 'RAPID_LOCATION_CHANGE', 'MULTIPLE_ATTEMPTS');
+
+ALTER TABLE FraudAlert ALTER COLUMN description DROP NOT NULL;
+ALTER TABLE FraudAlert ADD COLUMN ruleCode fraud_rule;
+ALTER TABLE FraudAlert ADD COLUMN triggeringOperationIds INTEGER[] NOT NULL DEFAULT '{}';
+ALTER TABLE FraudAlert ADD COLUMN measuredValue NUMERIC(15, 2);
+ALTER TABLE FraudAlert ADD COLUMN thresholdValue NUMERIC(15, 2);
+
+CREATE INDEX idx_fraud_alert_rule_date ON FraudAlert (ruleCode, creationDate);
+CREATE UNIQUE INDEX idx_fraud_alert_dedup ON FraudAlert (cardId, ruleCode, triggeringOperationIds) WHERE ruleCode IS NOT NULL;
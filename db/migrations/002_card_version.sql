@@ -0,0 +1 @@
+ALTER TABLE Card ADD COLUMN version INTEGER NOT NULL DEFAULT 0;
@@ -0,0 +1,4 @@
+ALTER TABLE Card ADD COLUMN cardNumberHash CHAR(64);
+
+-- Existing rows are hashed by CardNumberIndex.load() on the next startup.
+CREATE UNIQUE INDEX idx_card_number_hash ON Card (cardNumberHash);
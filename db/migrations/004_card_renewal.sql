@@ -0,0 +1,4 @@
+ALTER TABLE Card ADD COLUMN replacedByCardId INTEGER REFERENCES Card (cardId);
+
+-- Cards still waiting for renewal, in the renewal job's keyset order.
+CREATE INDEX idx_card_expiring ON Card (expirationDate, cardId) WHERE replacedByCardId IS NULL;
@@ -0,0 +1,7 @@
+-- Byte offset of the last committed chunk per import file, written in the same transaction
+-- as the chunk's rows so a failed import resumes exactly where it stopped.
+CREATE TABLE ImportCheckpoint (
+    filePath VARCHAR(1000) PRIMARY KEY,
+    byteOffset BIGINT NOT NULL,
+    updatedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
@@ -0,0 +1,5 @@
+-- Set on operations drained from the local write-ahead journal. Replaying an entry that
+-- already reached the table is a no-op thanks to the unique index.
+ALTER TABLE CardOperation ADD COLUMN journalId BIGINT;
+
+CREATE UNIQUE INDEX idx_card_operation_journal ON CardOperation (journalId);
@@ -0,0 +1,5 @@
+-- Optional client-supplied key that makes recording an operation safe to retry. NULL keys
+-- never conflict, so operations recorded without one are unaffected.
+ALTER TABLE CardOperation ADD COLUMN idempotencyKey VARCHAR(64);
+
+CREATE UNIQUE INDEX idx_card_operation_idempotency ON CardOperation (idempotencyKey);
@@ -1,9 +1,76 @@
+import api.HttpApiServer;
+import service.CardNumberIndex;
+import service.CardStateTable;
+import service.CardStatusRegistry;
+import service.IdempotencyCache;
+import service.OperationJournal;
+import service.SpendTracker;
 import ui.MainMenu;
+import util.PanHasher;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
 
 public class Main {
     public static void main(String[] args) {
         System.out.println("Starting Fraud Detection System...");
 
+        try {
+            PanHasher.requireKey();
+        } catch (IllegalStateException e) {
+            System.err.println("Not starting: " + e.getMessage());
+            return;
+        }
+
+        // The journal replays operations left from the previous run before the spend totals and
+        // idempotency keys are loaded from the table, or those caches would miss them.
+        try {
+            OperationJournal.getInstance().start();
+        } catch (IOException | SQLException e) {
+            if (OperationJournal.getInstance().hasBacklog()) {
+                System.err.println("Operation journal could not replay its backlog, not accepting operations: " + e.getMessage());
+                return;
+            }
+            System.err.println("Operation journal not started, operations will be written directly: " + e.getMessage());
+        }
+
+        try {
+            CardStatusRegistry.getInstance().load();
+        } catch (SQLException e) {
+            System.err.println("Card status index not preloaded, it will load on first use: " + e.getMessage());
+        }
+
+        try {
+            CardStateTable.getInstance().load();
+        } catch (SQLException e) {
+            System.err.println("Card state table not loaded, authorizations will read card rows: " + e.getMessage());
+        }
+
+        try {
+            SpendTracker.getInstance().load();
+        } catch (SQLException e) {
+            System.err.println("Spend totals not preloaded, they will load on first use: " + e.getMessage());
+        }
+
+        try {
+            CardNumberIndex.getInstance().load();
+        } catch (SQLException e) {
+            System.err.println("Card number index not loaded, lookups by number will query the database: " + e.getMessage());
+        }
+
+        try {
+            IdempotencyCache.getInstance().load();
+        } catch (SQLException e) {
+            System.err.println("Idempotency keys not preloaded, retries of earlier operations will be caught by the unique index: " + e.getMessage());
+        }
+
+        // --http serves the JSON API instead of the console menu, until the process is stopped.
+        if (Arrays.asList(args).contains("--http")) {
+            startHttpApi();
+            return;
+        }
+
         try {
             MainMenu menu = new MainMenu();
             menu.start();
@@ -14,4 +81,16 @@ public class Main {
 
         System.out.println("Application terminated.");
     }
+
+    private static void startHttpApi() {
+        HttpApiServer server = new HttpApiServer();
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Failed to start HTTP API: " + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1), "http-stop"));
+        System.out.println("HTTP API listening on " + server.host() + ":" + server.port());
+    }
 }
@@ -0,0 +1,526 @@
+package api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dao.AsyncDAO;
+import entity.Card;
+import entity.CardOperation;
+import entity.CreditCard;
+import entity.DebitCard;
+import entity.FraudAlert;
+import entity.PrepaidCard;
+import entity.enums.AlertLevel;
+import entity.enums.FraudRule;
+import entity.enums.OperationType;
+import service.AdmissionController;
+import service.CardNotFoundException;
+import service.CardOverview;
+import service.CardService;
+import service.CardStatusConflictException;
+import service.FraudService;
+import service.OperationRefusedException;
+import service.OperationService;
+import service.RetryLaterException;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Json;
+import util.Metrics;
+import util.ViewUtils;
+import util.VirtualThreads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// JSON over HTTP on the JDK's built-in server, for driving the system without the console menu.
+//
+//   POST /operations                 record an operation; body {cardId, amount, type, location,
+//                                    idempotencyKey?}, or the key in an Idempotency-Key header
+//   GET  /cards/{id}                 card details, number masked
+//   GET  /cards/{id}/overview        card, latest operations and alerts, read concurrently
+//   POST /cards/{id}/activate|suspend|block
+//   GET  /cards/{id}/operations      card history, archive included
+//   GET  /cards/{id}/alerts          fraud alerts for the card
+//   GET  /alerts?level=CRITICAL      all alerts, optionally by level and/or by rule
+//                                    (?rule=HIGH_AMOUNT)
+//   GET  /health, GET /metrics
+//
+// The server binds to http.host, loopback unless configured otherwise. When http.token is set,
+// every request except /health must carry it as "Authorization: Bearer <token>".
+//
+// Each request runs on its own virtual thread when the runtime has them (Java 21+) and on a
+// bounded pool otherwise. Requests beyond http.maxConnections get 503 at once, and the JDK
+// server closes connections whose request or response exceeds http.requestTimeoutSeconds.
+public class HttpApiServer {
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_MAX_CONNECTIONS = 10_000;
+    private static final int DEFAULT_REQUEST_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_BACKLOG = 1_024;
+    private static final int FALLBACK_THREADS = 256;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int MAX_AMOUNT_INTEGER_DIGITS = 15;
+
+    private final String host;
+    private final int port;
+    private final String token;
+    private final int maxConnections;
+    private final int requestTimeoutSeconds;
+    private final Semaphore inFlight;
+    private final OperationService operationService;
+    private final CardService cardService;
+    private final FraudService fraudService;
+    private final AdmissionController admission;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private static final class HttpError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        private HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private record Created(Object body) {
+    }
+
+    public HttpApiServer() {
+        this(System.getProperty("http.host", DEFAULT_HOST),
+            Integer.getInteger("http.port", DEFAULT_PORT),
+            System.getProperty("http.token"),
+            Integer.getInteger("http.maxConnections", DEFAULT_MAX_CONNECTIONS),
+            Integer.getInteger("http.requestTimeoutSeconds", DEFAULT_REQUEST_TIMEOUT_SECONDS));
+    }
+
+    // A null or empty token leaves the API open to anyone who can reach host.
+    public HttpApiServer(String host, int port, String token, int maxConnections, int requestTimeoutSeconds) {
+        this.host = host;
+        this.port = port;
+        this.token = token == null || token.isEmpty() ? null : token;
+        this.maxConnections = maxConnections;
+        this.requestTimeoutSeconds = requestTimeoutSeconds;
+        this.inFlight = new Semaphore(maxConnections);
+        this.operationService = new OperationService();
+        this.cardService = new CardService();
+        this.fraudService = new FraudService();
+        this.admission = AdmissionController.getInstance();
+        Metrics.registerGauge("http.inFlight", () -> maxConnections - inFlight.availablePermits());
+    }
+
+    public synchronized void start() throws IOException {
+        // Read by the JDK server when its first instance is created. maxConnections is only
+        // honoured from Java 18; the in-flight limit below applies on every version.
+        setDefault("sun.net.httpserver.maxReqTime", Integer.toString(requestTimeoutSeconds));
+        setDefault("sun.net.httpserver.maxRspTime", Integer.toString(requestTimeoutSeconds));
+        setDefault("jdk.httpserver.maxConnections", Integer.toString(maxConnections));
+
+        server = HttpServer.create(new InetSocketAddress(host, port), DEFAULT_BACKLOG);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public synchronized void stop(int delaySeconds) {
+        if (server != null) {
+            server.stop(delaySeconds);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        if (!inFlight.tryAcquire()) {
+            Metrics.increment("http.rejected.overloaded");
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, error("Too many concurrent requests, retry later"));
+            return;
+        }
+
+        try {
+            Object body = route(exchange);
+            if (body instanceof Created) {
+                respond(exchange, 201, ((Created) body).body());
+            } else {
+                respond(exchange, 200, body);
+            }
+        } catch (HttpError e) {
+            respond(exchange, e.status, error(e.getMessage()));
+        } catch (RetryLaterException e) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, error(e.getMessage()));
+        } catch (CardNotFoundException e) {
+            respond(exchange, 404, error(e.getMessage()));
+        } catch (CardStatusConflictException e) {
+            respond(exchange, 409, error(e.getMessage()));
+        } catch (OperationRefusedException e) {
+            respond(exchange, 422, error(e.getMessage()));
+        } catch (IllegalArgumentException | DateTimeParseException | ArithmeticException e) {
+            respond(exchange, 400, error(e.getMessage() == null ? "Invalid request" : e.getMessage()));
+        } catch (SQLException e) {
+            Metrics.increment("http.databaseError");
+            respond(exchange, 503, error("Database error: " + e.getMessage()));
+        } catch (RuntimeException e) {
+            Metrics.increment("http.internalError");
+            respond(exchange, 500, error("Internal error: " + e.getMessage()));
+        } finally {
+            inFlight.release();
+            exchange.close();
+            Metrics.recordNanos("http.request", System.nanoTime() - start);
+        }
+    }
+
+    private Object route(HttpExchange exchange) throws IOException, SQLException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+
+        if (path.length == 1 && path[0].equals("health")) {
+            requireMethod(method, "GET");
+            return Map.of("status", "ok");
+        }
+        requireToken(exchange);
+        if (path.length == 1 && path[0].equals("metrics")) {
+            requireMethod(method, "GET");
+            return Metrics.snapshot();
+        }
+        if (path.length == 1 && path[0].equals("operations")) {
+            requireMethod(method, "POST");
+            return new Created(recordOperation(exchange));
+        }
+        if (path.length == 1 && path[0].equals("alerts")) {
+            requireMethod(method, "GET");
+            Map<String, String> query = query(exchange);
+            AlertLevel level = query.containsKey("level") ? AlertLevel.valueOf(query.get("level").toUpperCase()) : null;
+            FraudRule rule = query.containsKey("rule") ? FraudRule.valueOf(query.get("rule").toUpperCase()) : null;
+            List<FraudAlert> alerts;
+            if (rule != null) {
+                alerts = read(() -> fraudService.getAlertsByRule(rule));
+            } else if (level != null) {
+                alerts = read(() -> fraudService.getAlertsByLevel(level));
+            } else {
+                alerts = read(fraudService::getAllAlerts);
+            }
+            return alerts.stream()
+                .filter(alert -> level == null || alert.getAlertLevel() == level)
+                .map(HttpApiServer::alertJson)
+                .toList();
+        }
+        if (path.length >= 2 && path[0].equals("cards")) {
+            int cardId = parseId(path[1]);
+            if (path.length == 2) {
+                requireMethod(method, "GET");
+                return cardJson(read(() -> cardService.findCardById(cardId))
+                    .orElseThrow(() -> new HttpError(404, "Card not found")));
+            }
+            if (path.length == 3) {
+                return cardResource(method, cardId, path[2]);
+            }
+        }
+        throw new HttpError(404, "No such resource");
+    }
+
+    private Object cardResource(String method, int cardId, String resource) throws SQLException {
+        switch (resource) {
+            case "operations" -> {
+                requireMethod(method, "GET");
+                return read(() -> operationService.findOperationsByCard(cardId)).stream().map(HttpApiServer::operationJson).toList();
+            }
+            case "alerts" -> {
+                requireMethod(method, "GET");
+                return read(() -> fraudService.getAlertsByCard(cardId)).stream().map(HttpApiServer::alertJson).toList();
+            }
+            case "overview" -> {
+                requireMethod(method, "GET");
+                CardOverview overview = await(cardService.loadOverview(cardId))
+                    .orElseThrow(() -> new HttpError(404, "Card not found"));
+                Map<String, Object> json = new LinkedHashMap<>();
+                json.put("card", cardJson(overview.card()));
+                json.put("recentOperations", overview.recentOperations().stream().map(HttpApiServer::operationJson).toList());
+                json.put("alerts", overview.alerts().stream().map(HttpApiServer::alertJson).toList());
+                return json;
+            }
+            case "activate", "suspend", "block" -> {
+                requireMethod(method, "POST");
+                return withConnection(() -> {
+                    boolean changed = switch (resource) {
+                        case "activate" -> cardService.activateCard(cardId);
+                        case "suspend" -> cardService.suspendCard(cardId);
+                        default -> cardService.blockCard(cardId);
+                    };
+                    if (!changed) {
+                        throw new HttpError(409, "Card status changed concurrently, retry");
+                    }
+                    return cardJson(cardService.findCardById(cardId).orElseThrow(() -> new HttpError(404, "Card not found")));
+                });
+            }
+            default -> throw new HttpError(404, "No such resource");
+        }
+    }
+
+    // Runs a database read under a READ permit, so reads cannot take the connections that
+    // authorizations need. Overview reads get theirs from AsyncDAO.
+    private <T> T read(AsyncDAO.Query<T> query) throws SQLException {
+        try (AdmissionController.Permit permit = admission.acquire(AdmissionController.Priority.READ)) {
+            try {
+                return withConnection(query);
+            } catch (SQLException e) {
+                permit.markFailed();
+                throw e;
+            }
+        }
+    }
+
+    // Runs handler database work on a pooled connection bound to this thread, so concurrent
+    // requests do not queue on the shared connection and a query outliving the request timeout
+    // is cancelled by the driver.
+    private <T> T withConnection(AsyncDAO.Query<T> work) throws SQLException {
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            pooled.bindToCurrentThread(requestTimeoutSeconds);
+            return work.run();
+        }
+    }
+
+    private <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.get(requestTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new HttpError(504, "Timed out after " + requestTimeoutSeconds + " seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private Map<String, Object> recordOperation(HttpExchange exchange) throws IOException, SQLException {
+        Map<String, Object> request = Json.parseObject(readBody(exchange));
+        int cardId = requireNumber(request, "cardId").intValueExact();
+        BigDecimal amount = requireAmount(request, "amount");
+        OperationType type = OperationType.valueOf(requireString(request, "type").toUpperCase());
+        String location = optionalString(request, "location");
+        String idempotencyKey = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Idempotency-Key"))
+            .orElse(optionalString(request, "idempotencyKey"));
+
+        CardOperation operation = withConnection(
+            () -> operationService.recordOperation(cardId, amount, type, location, idempotencyKey));
+        Map<String, Object> response = operationJson(operation);
+        response.put("status", operation.operationId() > 0 ? "recorded" : "accepted");
+        return response;
+    }
+
+    private static Map<String, Object> operationJson(CardOperation operation) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("operationId", operation.operationId() > 0 ? operation.operationId() : null);
+        json.put("cardId", operation.cardId());
+        json.put("operationDate", operation.operationDate());
+        json.put("amount", operation.amount());
+        json.put("type", operation.operationType());
+        json.put("location", operation.location());
+        if (operation.idempotencyKey() != null) {
+            json.put("idempotencyKey", operation.idempotencyKey());
+        }
+        return json;
+    }
+
+    private static Map<String, Object> cardJson(Card card) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("cardId", card.getCardId());
+        json.put("cardNumber", ViewUtils.maskCardNumber(card.getCardNumber()));
+        json.put("cardType", card.getCardType());
+        json.put("status", card.getCardStatus());
+        json.put("customerId", card.getCustomerId());
+        json.put("expirationDate", card.getExpirationDate());
+        if (card instanceof DebitCard) {
+            json.put("dailyLimit", ((DebitCard) card).getDailyLimit());
+        } else if (card instanceof CreditCard) {
+            json.put("monthlyLimit", ((CreditCard) card).getMonthlyLimit());
+            json.put("interestRate", ((CreditCard) card).getInterestRate());
+        } else if (card instanceof PrepaidCard) {
+            json.put("availableBalance", ((PrepaidCard) card).getAvailableBalance());
+        }
+        return json;
+    }
+
+    private static Map<String, Object> alertJson(FraudAlert alert) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("alertId", alert.alertId());
+        json.put("cardId", alert.cardId());
+        json.put("level", alert.alertLevel());
+        json.put("rule", alert.ruleCode());
+        json.put("description", ViewUtils.describeAlert(alert));
+        json.put("operationIds", alert.operationIds());
+        json.put("measuredValue", alert.measuredValue());
+        json.put("thresholdValue", alert.thresholdValue());
+        json.put("creationDate", alert.creationDate());
+        return json;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) {
+                throw new HttpError(413, "Request body larger than " + MAX_BODY_BYTES + " bytes");
+            }
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        Metrics.increment("http.status." + status);
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> json = new HashMap<>();
+        json.put("error", message);
+        return json;
+    }
+
+    private void requireToken(HttpExchange exchange) {
+        if (token == null) {
+            return;
+        }
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] presented = header == null ? new byte[0] : header.getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(presented, ("Bearer " + token).getBytes(StandardCharsets.UTF_8))) {
+            Metrics.increment("http.rejected.unauthorized");
+            throw new HttpError(401, "Missing or invalid bearer token");
+        }
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!expected.equals(method)) {
+            throw new HttpError(405, "Use " + expected + " for this resource");
+        }
+    }
+
+    private static int parseId(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new HttpError(404, "No such resource");
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static BigDecimal requireNumber(Map<String, Object> request, String field) {
+        Object value = request.get(field);
+        if (!(value instanceof BigDecimal)) {
+            throw new IllegalArgumentException("Field '" + field + "' must be a number");
+        }
+        return (BigDecimal) value;
+    }
+
+    // Checked on the cheap scale and precision before any arithmetic: an exponent such as 1e99999999
+    // is a valid JSON number, but rescaling it to cents would tie up an authorization worker.
+    private static BigDecimal requireAmount(Map<String, Object> request, String field) {
+        BigDecimal amount = requireNumber(request, field).stripTrailingZeros();
+        if (amount.signum() <= 0) {
+            throw new IllegalArgumentException("Field '" + field + "' must be positive");
+        }
+        if (amount.scale() > 2) {
+            throw new IllegalArgumentException("Field '" + field + "' must have at most 2 decimal places");
+        }
+        if (amount.precision() - amount.scale() > MAX_AMOUNT_INTEGER_DIGITS) {
+            throw new IllegalArgumentException("Field '" + field + "' is too large");
+        }
+        return amount.setScale(2);
+    }
+
+    private static String requireString(Map<String, Object> request, String field) {
+        String value = optionalString(request, field);
+        if (value == null) {
+            throw new IllegalArgumentException("Field '" + field + "' is required");
+        }
+        return value;
+    }
+
+    private static String optionalString(Map<String, Object> request, String field) {
+        Object value = request.get(field);
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException("Field '" + field + "' must be a string");
+        }
+        return (String) value;
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    private static ExecutorService newRequestExecutor() {
+        return VirtualThreads.newPerTaskExecutorOr(() -> {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(FALLBACK_THREADS, FALLBACK_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "http-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        });
+    }
+}
@@ -0,0 +1,139 @@
+package dao;
+
+import entity.Card;
+import entity.CardOperation;
+import entity.Customer;
+import entity.FraudAlert;
+import entity.enums.AlertLevel;
+import service.AdmissionController;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+import util.VirtualThreads;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// CompletableFuture facade over the DAOs, for fanning out independent reads. Each query runs on
+// the query executor with a pooled connection bound to its thread, so concurrent queries use
+// separate connections instead of queuing on the shared one, and no more than the pool size
+// run at once. The executor uses virtual threads where the runtime has them and a pool of
+// POOL_SIZE threads otherwise. Failures complete the future with the SQLException as cause.
+//
+// Every query is a read for admission control: it takes a READ permit before its connection, so
+// fanned-out reads cannot fill the pool ahead of authorizations. A refused permit completes the
+// future with RetryLaterException.
+//
+// Queries run with a timeout of asyncQuery.timeoutSeconds, by default the HTTP request timeout:
+// cancelling the future does not stop a running query, so the timeout is what frees the
+// connection of a request that was given up on.
+public class AsyncDAO {
+    private static final int DEFAULT_QUERY_TIMEOUT_SECONDS = 30;
+
+    private static AsyncDAO instance = null;
+
+    private final CardDAO cardDAO;
+    private final CardOperationDAO operationDAO;
+    private final FraudAlertDAO alertDAO;
+    private final CustomerDAO customerDAO;
+    private final ExecutorService executor;
+    private final AdmissionController admission;
+    private final int queryTimeoutSeconds;
+
+    @FunctionalInterface
+    public interface Query<T> {
+        T run() throws SQLException;
+    }
+
+    private AsyncDAO() {
+        this.cardDAO = new CardDAO();
+        this.operationDAO = new CardOperationDAO();
+        this.alertDAO = new FraudAlertDAO();
+        this.customerDAO = new CustomerDAO();
+        this.admission = AdmissionController.getInstance();
+        this.queryTimeoutSeconds = Integer.getInteger("asyncQuery.timeoutSeconds",
+            Integer.getInteger("http.requestTimeoutSeconds", DEFAULT_QUERY_TIMEOUT_SECONDS));
+        this.executor = VirtualThreads.newPerTaskExecutorOr(() -> {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(DatabaseConnection.getPoolSize(), runnable -> {
+                Thread thread = new Thread(runnable, "async-query-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        });
+    }
+
+    public static synchronized AsyncDAO getInstance() {
+        if (instance == null) {
+            instance = new AsyncDAO();
+        }
+        return instance;
+    }
+
+    public <T> CompletableFuture<T> supply(Query<T> query) {
+        long submitted = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            try (AdmissionController.Permit permit = admission.acquire(AdmissionController.Priority.READ)) {
+                try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+                    pooled.bindToCurrentThread(queryTimeoutSeconds);
+                    long started = System.nanoTime();
+                    Metrics.recordNanos("asyncQuery.wait", started - submitted);
+                    T result = query.run();
+                    Metrics.recordNanos("asyncQuery.run", System.nanoTime() - started);
+                    return result;
+                } catch (SQLException e) {
+                    permit.markFailed();
+                    Metrics.increment("asyncQuery.failed");
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<Optional<Card>> findCardById(int cardId) {
+        return supply(() -> cardDAO.findById(cardId));
+    }
+
+    public CompletableFuture<List<Card>> findCardsByCustomer(int customerId) {
+        return supply(() -> cardDAO.findByCustomerId(customerId));
+    }
+
+    public CompletableFuture<List<CardOperation>> findOperationsByCard(int cardId) {
+        return supply(() -> operationDAO.findByCardId(cardId));
+    }
+
+    public CompletableFuture<List<CardOperation>> findRecentOperationsByCard(int cardId, int limit) {
+        return supply(() -> operationDAO.findRecentOperationsByCard(cardId, limit));
+    }
+
+    public CompletableFuture<List<CardOperation>> findOperationsByCardAndDateRange(int cardId, LocalDateTime startDate, LocalDateTime endDate) {
+        return supply(() -> operationDAO.findByCardAndDateRange(cardId, startDate, endDate));
+    }
+
+    public CompletableFuture<List<CardOperation>> findOperationsByDateRange(LocalDateTime startDate, LocalDateTime endDate) {
+        return supply(() -> operationDAO.findByDateRange(startDate, endDate));
+    }
+
+    public CompletableFuture<List<FraudAlert>> findAlertsByCard(int cardId) {
+        return supply(() -> alertDAO.findByCardId(cardId));
+    }
+
+    public CompletableFuture<List<FraudAlert>> findAlertsByLevel(AlertLevel level) {
+        return supply(() -> alertDAO.findByLevel(level));
+    }
+
+    public CompletableFuture<Optional<Customer>> findCustomerById(int customerId) {
+        return supply(() -> customerDAO.findById(customerId));
+    }
+
+    public CompletableFuture<Optional<Customer>> findCustomerByEmail(String email) {
+        return supply(() -> customerDAO.findByEmail(email));
+    }
+}
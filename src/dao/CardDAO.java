@@ -4,57 +4,203 @@ import entity.*;
 import entity.enums.CardStatus;
 import entity.enums.CardType;
 import util.DatabaseConnection;
+import util.PanHasher;
 
 import java.math.BigDecimal;
 import java.sql.*;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class CardDAO {
+    private static final int STREAM_FETCH_SIZE = 5_000;
+    private static final int BATCH_SIZE = 1_000;
+    private static final String INSERT_SQL = "INSERT INTO Card (cardNumber, expirationDate, cardStatus, cardType, customerId, dailyLimit, monthlyLimit, interestRate, availableBalance, cardNumberHash) VALUES (?, ?, ?::card_status, ?::card_type, ?, ?, ?, ?, ?, ?)";
 
     public Card save(Card card) throws SQLException {
-        String sql = "INSERT INTO Card (cardNumber, expirationDate, cardStatus, cardType, customerId, dailyLimit, monthlyLimit, interestRate, availableBalance) VALUES (?, ?, ?::card_status, ?::card_type, ?, ?, ?, ?, ?) RETURNING cardId";
+        String sql = INSERT_SQL + " RETURNING cardId, version";
         Connection conn = DatabaseConnection.getInstance().getConnection();
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, card.getCardNumber());
-            stmt.setDate(2, Date.valueOf(card.getExpirationDate()));
-            stmt.setString(3, card.getCardStatus().name());
-            stmt.setString(4, card.getCardType().name());
-            stmt.setInt(5, card.getCustomerId());
-
-            if (card instanceof DebitCard) {
-                DebitCard debitCard = (DebitCard) card;
-                stmt.setBigDecimal(6, debitCard.getDailyLimit());
-                stmt.setNull(7, Types.NUMERIC);
-                stmt.setNull(8, Types.NUMERIC);
-                stmt.setNull(9, Types.NUMERIC);
-            } else if (card instanceof CreditCard) {
-                CreditCard creditCard = (CreditCard) card;
-                stmt.setNull(6, Types.NUMERIC);
-                stmt.setBigDecimal(7, creditCard.getMonthlyLimit());
-                stmt.setBigDecimal(8, creditCard.getInterestRate());
-                stmt.setNull(9, Types.NUMERIC);
-            } else if (card instanceof PrepaidCard) {
-                PrepaidCard prepaidCard = (PrepaidCard) card;
-                stmt.setNull(6, Types.NUMERIC);
-                stmt.setNull(7, Types.NUMERIC);
-                stmt.setNull(8, Types.NUMERIC);
-                stmt.setBigDecimal(9, prepaidCard.getAvailableBalance());
-            }
+            bindInsert(stmt, card);
 
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 int cardId = rs.getInt("cardId");
                 card.setCardId(cardId);
+                card.setVersion(rs.getInt("version"));
                 return card;
             }
             throw new SQLException("Failed to create card");
         }
     }
 
+    // Inserts the cards in JDBC batches within one transaction and sets the generated ids back on
+    // them in order. Either every card is stored or none is, so the caller never has to index a
+    // partial issue.
+    public void saveAll(Connection conn, List<? extends Card> cards) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+
+        try {
+            for (int start = 0; start < cards.size(); start += BATCH_SIZE) {
+                insertAll(conn, cards.subList(start, Math.min(start + BATCH_SIZE, cards.size())));
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    // One JDBC batch in the caller's transaction.
+    public void insertAll(Connection conn, List<? extends Card> cards) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL, new String[] {"cardid", "version"})) {
+            for (Card card : cards) {
+                bindInsert(stmt, card);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                for (Card card : cards) {
+                    if (!keys.next()) {
+                        throw new SQLException("Failed to create card");
+                    }
+                    card.setCardId(keys.getInt("cardid"));
+                    card.setVersion(keys.getInt("version"));
+                }
+            }
+        }
+    }
+
+    // Keyset page of cards expiring in [from, to] after (afterDate, afterCardId) that have not
+    // been replaced yet. Blocked cards are never renewed.
+    public List<Card> findExpiringPage(Connection conn, LocalDate from, LocalDate to, LocalDate afterDate,
+                                       int afterCardId, int limit) throws SQLException {
+        String sql = "SELECT * FROM Card WHERE expirationDate BETWEEN ? AND ? AND replacedByCardId IS NULL " +
+                     "AND cardStatus <> 'BLOCKED'::card_status AND (expirationDate, cardId) > (?, ?) " +
+                     "ORDER BY expirationDate, cardId LIMIT ?";
+        List<Card> cards = new ArrayList<>();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setDate(1, Date.valueOf(from));
+            stmt.setDate(2, Date.valueOf(to));
+            stmt.setDate(3, Date.valueOf(afterDate));
+            stmt.setInt(4, afterCardId);
+            stmt.setInt(5, limit);
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                cards.add(mapResultSetToCard(rs));
+            }
+        }
+        return cards;
+    }
+
+    // Points each old card at its replacement and empties a prepaid balance that moved across.
+    // Returns the ids of cards that changed since they were read, in which case nothing should
+    // be committed.
+    public List<Integer> markReplaced(Connection conn, List<? extends Card> oldCards,
+                                      List<? extends Card> replacements) throws SQLException {
+        String sql = "UPDATE Card SET replacedByCardId = ?, version = version + 1, " +
+                     "availableBalance = CASE WHEN cardType = 'PREPAID'::card_type THEN 0 ELSE availableBalance END " +
+                     "WHERE cardId = ? AND version = ? AND replacedByCardId IS NULL";
+        List<Integer> conflicts = new ArrayList<>();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < oldCards.size(); i++) {
+                Card card = oldCards.get(i);
+                stmt.setInt(1, replacements.get(i).getCardId());
+                stmt.setInt(2, card.getCardId());
+                stmt.setInt(3, card.getVersion());
+                stmt.addBatch();
+            }
+
+            int[] counts = stmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    conflicts.add(oldCards.get(i).getCardId());
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    private void bindInsert(PreparedStatement stmt, Card card) throws SQLException {
+        stmt.setString(1, card.getCardNumber());
+        stmt.setDate(2, Date.valueOf(card.getExpirationDate()));
+        stmt.setString(3, card.getCardStatus().name());
+        stmt.setString(4, card.getCardType().name());
+        stmt.setInt(5, card.getCustomerId());
+
+        if (card instanceof DebitCard) {
+            DebitCard debitCard = (DebitCard) card;
+            stmt.setBigDecimal(6, debitCard.getDailyLimit());
+            stmt.setNull(7, Types.NUMERIC);
+            stmt.setNull(8, Types.NUMERIC);
+            stmt.setNull(9, Types.NUMERIC);
+        } else if (card instanceof CreditCard) {
+            CreditCard creditCard = (CreditCard) card;
+            stmt.setNull(6, Types.NUMERIC);
+            stmt.setBigDecimal(7, creditCard.getMonthlyLimit());
+            stmt.setBigDecimal(8, creditCard.getInterestRate());
+            stmt.setNull(9, Types.NUMERIC);
+        } else if (card instanceof PrepaidCard) {
+            PrepaidCard prepaidCard = (PrepaidCard) card;
+            stmt.setNull(6, Types.NUMERIC);
+            stmt.setNull(7, Types.NUMERIC);
+            stmt.setNull(8, Types.NUMERIC);
+            stmt.setBigDecimal(9, prepaidCard.getAvailableBalance());
+        }
+        stmt.setString(10, PanHasher.hashHex(card.getCardNumber()));
+    }
+
+    public Set<Integer> findExistingCardIds(Collection<Integer> cardIds) throws SQLException {
+        String sql = "SELECT cardId FROM Card WHERE cardId = ANY(?)";
+        Set<Integer> existing = new HashSet<>();
+        if (cardIds.isEmpty()) {
+            return existing;
+        }
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("integer", cardIds.toArray()));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                existing.add(rs.getInt("cardId"));
+            }
+        }
+        return existing;
+    }
+
+    public Set<String> findExistingCardNumberHashes(Collection<String> cardNumberHashes) throws SQLException {
+        String sql = "SELECT cardNumberHash FROM Card WHERE cardNumberHash = ANY(?)";
+        Set<String> existing = new HashSet<>();
+        if (cardNumberHashes.isEmpty()) {
+            return existing;
+        }
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("varchar", cardNumberHashes.toArray()));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                existing.add(rs.getString("cardNumberHash"));
+            }
+        }
+        return existing;
+    }
+
     public Optional<Card> findById(int cardId) throws SQLException {
         String sql = "SELECT * FROM Card WHERE cardId = ?";
         Connection conn = DatabaseConnection.getInstance().getConnection();
@@ -70,6 +216,21 @@ public class CardDAO {
         }
     }
 
+    public Optional<Card> findByCardNumber(String cardNumber) throws SQLException {
+        String sql = "SELECT * FROM Card WHERE cardNumberHash = ?";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, PanHasher.hashHex(cardNumber));
+            ResultSet rs = stmt.executeQuery();
+
+            if (rs.next()) {
+                return Optional.of(mapResultSetToCard(rs));
+            }
+            return Optional.empty();
+        }
+    }
+
     public List<Card> findAll() throws SQLException {
         String sql = "SELECT * FROM Card ORDER BY cardNumber";
         List<Card> cards = new ArrayList<>();
@@ -117,8 +278,189 @@ public class CardDAO {
         return cards;
     }
 
+    public List<Integer> findCardIdsByCardStatus(CardStatus... cardStatuses) throws SQLException {
+        String sql = "SELECT cardId FROM Card WHERE cardStatus = ANY(?::card_status[])";
+        List<Integer> cardIds = new ArrayList<>();
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        String[] statusNames = new String[cardStatuses.length];
+        for (int i = 0; i < cardStatuses.length; i++) {
+            statusNames[i] = cardStatuses[i].name();
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("varchar", statusNames));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                cardIds.add(rs.getInt("cardId"));
+            }
+        }
+        return cardIds;
+    }
+
+    public int findMaxCardId() throws SQLException {
+        String sql = "SELECT COALESCE(MAX(cardId), 0) AS maxCardId FROM Card";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt("maxCardId");
+        }
+    }
+
+    // Card count and the sum of row versions. Every update through this class bumps a version, so
+    // the pair changes whenever a card is added, removed or modified.
+    public Watermark findWatermark() throws SQLException {
+        String sql = "SELECT COUNT(*) AS cardCount, COALESCE(SUM(version), 0) AS versionSum FROM Card";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return new Watermark(rs.getLong("cardCount"), rs.getLong("versionSum"));
+        }
+    }
+
+    public record Watermark(long cardCount, long versionSum) {
+    }
+
+    public long streamAll(Connection conn, Consumer<Card> consumer) throws SQLException {
+        String sql = "SELECT * FROM Card ORDER BY cardId";
+        long count = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToCard(rs));
+                    count++;
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    public long streamFiltered(Connection conn, List<Integer> cardIds, List<Integer> customerIds,
+                               Consumer<Card> consumer) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT * FROM Card WHERE TRUE");
+        List<Object> params = new ArrayList<>();
+        if (!cardIds.isEmpty()) {
+            sql.append(" AND cardId = ANY(?)");
+            params.add(conn.createArrayOf("integer", cardIds.toArray()));
+        }
+        if (!customerIds.isEmpty()) {
+            sql.append(" AND customerId = ANY(?)");
+            params.add(conn.createArrayOf("integer", customerIds.toArray()));
+        }
+        sql.append(" ORDER BY cardId");
+        long count = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToCard(rs));
+                    count++;
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    public long streamCardNumberHashes(Connection conn, CardHashConsumer consumer) throws SQLException {
+        String sql = "SELECT cardId, cardNumberHash FROM Card WHERE cardNumberHash IS NOT NULL";
+        long count = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(rs.getInt("cardId"), rs.getString("cardNumberHash"));
+                    count++;
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    // One-off migration for rows written before card numbers were hashed.
+    public int backfillCardNumberHashes(Connection conn) throws SQLException {
+        return writeCardNumberHashes(conn, "SELECT cardId, cardNumber FROM Card WHERE cardNumberHash IS NULL");
+    }
+
+    // After a PAN_HASH_KEY change: every stored hash is rewritten in one transaction.
+    public int rehashCardNumbers(Connection conn) throws SQLException {
+        return writeCardNumberHashes(conn, "SELECT cardId, cardNumber FROM Card WHERE cardNumberHash IS NOT NULL");
+    }
+
+    // All hashes are written with one key, so one row tells whether they were written with the current one.
+    public boolean cardNumberHashesMatchKey(Connection conn) throws SQLException {
+        String sql = "SELECT cardNumber, cardNumberHash FROM Card WHERE cardNumberHash IS NOT NULL LIMIT 1";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            return !rs.next() || PanHasher.hashHex(rs.getString("cardNumber")).equals(rs.getString("cardNumberHash"));
+        }
+    }
+
+    private int writeCardNumberHashes(Connection conn, String selectSql) throws SQLException {
+        String updateSql = "UPDATE Card SET cardNumberHash = ? WHERE cardId = ?";
+        int updated = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement select = conn.prepareStatement(selectSql);
+             PreparedStatement update = conn.prepareStatement(updateSql)) {
+            select.setFetchSize(STREAM_FETCH_SIZE);
+
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    update.setString(1, PanHasher.hashHex(rs.getString("cardNumber")));
+                    update.setInt(2, rs.getInt("cardId"));
+                    update.addBatch();
+                    if (++updated % BATCH_SIZE == 0) {
+                        update.executeBatch();
+                    }
+                }
+            }
+            update.executeBatch();
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return updated;
+    }
+
+    @FunctionalInterface
+    public interface CardHashConsumer {
+        void accept(int cardId, String cardNumberHash);
+    }
+
     public boolean update(Card card) throws SQLException {
-        String sql = "UPDATE Card SET cardNumber = ?, expirationDate = ?, cardStatus = ?::card_status, dailyLimit = ?, monthlyLimit = ?, interestRate = ?, availableBalance = ? WHERE cardId = ?";
+        String sql = "UPDATE Card SET cardNumber = ?, expirationDate = ?, cardStatus = ?::card_status, dailyLimit = ?, monthlyLimit = ?, interestRate = ?, availableBalance = ?, cardNumberHash = ?, version = version + 1 WHERE cardId = ? AND version = ?";
         Connection conn = DatabaseConnection.getInstance().getConnection();
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -146,13 +488,90 @@ public class CardDAO {
                 stmt.setBigDecimal(7, prepaidCard.getAvailableBalance());
             }
 
-            stmt.setInt(8, card.getCardId());
+            stmt.setString(8, PanHasher.hashHex(card.getCardNumber()));
+            stmt.setInt(9, card.getCardId());
+            stmt.setInt(10, card.getVersion());
+
+            // No row means the card was deleted or changed since it was read.
+            int rowsAffected = stmt.executeUpdate();
+            if (rowsAffected > 0) {
+                card.setVersion(card.getVersion() + 1);
+            }
+            return rowsAffected > 0;
+        }
+    }
+
+    // Never suspends a blocked card, whatever from says: a block only ends through reactivation.
+    public boolean updateStatus(int cardId, CardStatus from, CardStatus to) throws SQLException {
+        String sql = "UPDATE Card SET cardStatus = ?::card_status, version = version + 1 WHERE cardId = ? AND cardStatus = ?::card_status"
+            + " AND NOT (cardStatus = 'BLOCKED'::card_status AND ?::card_status = 'SUSPENDED'::card_status)";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, to.name());
+            stmt.setInt(2, cardId);
+            stmt.setString(3, from.name());
+            stmt.setString(4, to.name());
 
             int rowsAffected = stmt.executeUpdate();
             return rowsAffected > 0;
         }
     }
 
+    public List<Integer> updateStatusByCustomerId(int customerId, CardStatus to) throws SQLException {
+        String sql = "UPDATE Card SET cardStatus = ?::card_status, version = version + 1 WHERE customerId = ? AND cardStatus <> ?::card_status RETURNING cardId";
+        List<Integer> cardIds = new ArrayList<>();
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, to.name());
+            stmt.setInt(2, customerId);
+            stmt.setString(3, to.name());
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                cardIds.add(rs.getInt("cardId"));
+            }
+        }
+        return cardIds;
+    }
+
+    // Only cards currently in the from status change, so a bulk suspend cannot downgrade a block.
+    public List<Integer> updateStatus(List<Integer> cardIds, CardStatus from, CardStatus to) throws SQLException {
+        String sql = "UPDATE Card SET cardStatus = ?::card_status, version = version + 1 WHERE cardId = ANY(?) AND cardStatus = ?::card_status RETURNING cardId";
+        List<Integer> updatedIds = new ArrayList<>();
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, to.name());
+            stmt.setArray(2, conn.createArrayOf("integer", cardIds.toArray()));
+            stmt.setString(3, from.name());
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                updatedIds.add(rs.getInt("cardId"));
+            }
+        }
+        return updatedIds;
+    }
+
+    // Check and decrement in one statement so concurrent debits can never overdraw the card.
+    public Optional<BigDecimal> debitBalance(Connection conn, int cardId, BigDecimal amount) throws SQLException {
+        String sql = "UPDATE Card SET availableBalance = availableBalance - ?, version = version + 1 WHERE cardId = ? AND cardType = 'PREPAID'::card_type AND cardStatus = 'ACTIVE'::card_status AND availableBalance >= ? RETURNING availableBalance";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setBigDecimal(1, amount);
+            stmt.setInt(2, cardId);
+            stmt.setBigDecimal(3, amount);
+            ResultSet rs = stmt.executeQuery();
+
+            if (rs.next()) {
+                return Optional.of(rs.getBigDecimal("availableBalance"));
+            }
+            return Optional.empty();
+        }
+    }
+
     public boolean delete(int cardId) throws SQLException {
         String sql = "DELETE FROM Card WHERE cardId = ?";
         Connection conn = DatabaseConnection.getInstance().getConnection();
@@ -172,24 +591,28 @@ public class CardDAO {
         CardType cardType = CardType.valueOf(rs.getString("cardType"));
         int customerId = rs.getInt("customerId");
 
+        Card card;
         if (cardType == CardType.DEBIT) {
-            return new DebitCard(
+            card = new DebitCard(
                 cardId, cardNumber, expirationDate, cardStatus, customerId,
                 rs.getBigDecimal("dailyLimit")
             );
         } else if (cardType == CardType.CREDIT) {
-            return new CreditCard(
+            card = new CreditCard(
                 cardId, cardNumber, expirationDate, cardStatus, customerId,
                 rs.getBigDecimal("monthlyLimit"),
                 rs.getBigDecimal("interestRate")
             );
         } else if (cardType == CardType.PREPAID) {
-            return new PrepaidCard(
+            card = new PrepaidCard(
                 cardId, cardNumber, expirationDate, cardStatus, customerId,
                 rs.getBigDecimal("availableBalance")
             );
         } else {
             throw new IllegalArgumentException("Unknown card type: " + cardType);
         }
+
+        card.setVersion(rs.getInt("version"));
+        return card;
     }
 }
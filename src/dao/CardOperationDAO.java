@@ -4,17 +4,27 @@ import entity.CardOperation;
 import entity.enums.OperationType;
 import util.DatabaseConnection;
 
+import java.math.BigDecimal;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class CardOperationDAO {
+    private static final int STREAM_FETCH_SIZE = 5_000;
+    private static final int BATCH_SIZE = 1_000;
 
     public CardOperation save(CardOperation cardOperation) throws SQLException {
-        String sql = "INSERT INTO CardOperation (operationDate, amount, operationType, location, cardId) VALUES (?, ?, ?::operation_type, ?, ?) RETURNING operationId";
-        Connection conn = DatabaseConnection.getInstance().getConnection();
+        return save(DatabaseConnection.getInstance().getConnection(), cardOperation);
+    }
+
+    public CardOperation save(Connection conn, CardOperation cardOperation) throws SQLException {
+        String sql = "INSERT INTO CardOperation (operationDate, amount, operationType, location, cardId, idempotencyKey) VALUES (?, ?, ?::operation_type, ?, ?, ?) RETURNING operationId";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setTimestamp(1, Timestamp.valueOf(cardOperation.operationDate()));
@@ -22,17 +32,183 @@ public class CardOperationDAO {
             stmt.setString(3, cardOperation.operationType().name());
             stmt.setString(4, cardOperation.location());
             stmt.setInt(5, cardOperation.cardId());
+            stmt.setString(6, cardOperation.idempotencyKey());
 
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 int operationId = rs.getInt("operationId");
                 return new CardOperation(operationId, cardOperation.operationDate(), cardOperation.amount(),
-                                       cardOperation.operationType(), cardOperation.location(), cardOperation.cardId());
+                                       cardOperation.operationType(), cardOperation.location(), cardOperation.cardId(),
+                                       cardOperation.idempotencyKey());
             }
             throw new SQLException("Failed to create card operation");
         }
     }
 
+    // JDBC batches in the caller's transaction; the generated ids are not read back. A row whose
+    // idempotency key is already taken is skipped.
+    public void insertAll(Connection conn, List<CardOperation> cardOperations) throws SQLException {
+        String sql = "INSERT INTO CardOperation (operationDate, amount, operationType, location, cardId, idempotencyKey) VALUES (?, ?, ?::operation_type, ?, ?, ?) ON CONFLICT (idempotencyKey) DO NOTHING";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int pending = 0;
+            for (CardOperation cardOperation : cardOperations) {
+                stmt.setTimestamp(1, Timestamp.valueOf(cardOperation.operationDate()));
+                stmt.setBigDecimal(2, cardOperation.amount());
+                stmt.setString(3, cardOperation.operationType().name());
+                stmt.setString(4, cardOperation.location());
+                stmt.setInt(5, cardOperation.cardId());
+                stmt.setString(6, cardOperation.idempotencyKey());
+                stmt.addBatch();
+
+                if (++pending == BATCH_SIZE) {
+                    stmt.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                stmt.executeBatch();
+            }
+        }
+    }
+
+    // Server-side cursor over the operations matching the filters, in operationId order. Empty
+    // id lists and null dates leave that filter out; endDate is exclusive.
+    public long streamFiltered(Connection conn, List<Integer> cardIds, List<Integer> customerIds, LocalDateTime startDate,
+                               LocalDateTime endDate, Consumer<CardOperation> consumer) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT o.* FROM CardOperation o");
+        List<Object> params = new ArrayList<>();
+        if (!customerIds.isEmpty()) {
+            sql.append(" JOIN Card c ON c.cardId = o.cardId AND c.customerId = ANY(?)");
+            params.add(conn.createArrayOf("integer", customerIds.toArray()));
+        }
+        sql.append(" WHERE TRUE");
+        if (!cardIds.isEmpty()) {
+            sql.append(" AND o.cardId = ANY(?)");
+            params.add(conn.createArrayOf("integer", cardIds.toArray()));
+        }
+        if (startDate != null) {
+            sql.append(" AND o.operationDate >= ?");
+            params.add(Timestamp.valueOf(startDate));
+        }
+        if (endDate != null) {
+            sql.append(" AND o.operationDate < ?");
+            params.add(Timestamp.valueOf(endDate));
+        }
+        sql.append(" ORDER BY o.operationId");
+        long count = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToCardOperation(rs));
+                    count++;
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    // Inserts operations drained from the journal in the caller's transaction. Entries that were
+    // already inserted by an earlier drain are skipped; an idempotency key that is already taken
+    // fails the batch with a unique violation, so the caller sees it.
+    public int insertJournaled(Connection conn, List<CardOperation> cardOperations, List<Long> journalIds) throws SQLException {
+        String sql = "INSERT INTO CardOperation (operationDate, amount, operationType, location, cardId, journalId, idempotencyKey) VALUES (?, ?, ?::operation_type, ?, ?, ?, ?) ON CONFLICT (journalId) DO NOTHING";
+        int inserted = 0;
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < cardOperations.size(); i++) {
+                CardOperation cardOperation = cardOperations.get(i);
+                stmt.setTimestamp(1, Timestamp.valueOf(cardOperation.operationDate()));
+                stmt.setBigDecimal(2, cardOperation.amount());
+                stmt.setString(3, cardOperation.operationType().name());
+                stmt.setString(4, cardOperation.location());
+                stmt.setInt(5, cardOperation.cardId());
+                stmt.setLong(6, journalIds.get(i));
+                stmt.setString(7, cardOperation.idempotencyKey());
+                stmt.addBatch();
+            }
+            for (int count : stmt.executeBatch()) {
+                inserted += Math.max(count, 0);
+            }
+        }
+        return inserted;
+    }
+
+    public Optional<Integer> findIdByIdempotencyKey(String idempotencyKey) throws SQLException {
+        String sql = "SELECT operationId FROM CardOperation WHERE idempotencyKey = ?";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, idempotencyKey);
+            ResultSet rs = stmt.executeQuery();
+
+            if (rs.next()) {
+                return Optional.of(rs.getInt("operationId"));
+            }
+        }
+        return Optional.empty();
+    }
+
+    public Set<String> findExistingIdempotencyKeys(Collection<String> idempotencyKeys) throws SQLException {
+        String sql = "SELECT idempotencyKey FROM CardOperation WHERE idempotencyKey = ANY(?)";
+        Set<String> existing = new HashSet<>();
+        if (idempotencyKeys.isEmpty()) {
+            return existing;
+        }
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("varchar", idempotencyKeys.toArray()));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                existing.add(rs.getString("idempotencyKey"));
+            }
+        }
+        return existing;
+    }
+
+    public void streamIdempotencyKeysSince(LocalDateTime since, IdempotencyKeyConsumer consumer) throws SQLException {
+        String sql = "SELECT operationId, idempotencyKey FROM CardOperation WHERE idempotencyKey IS NOT NULL AND operationDate >= ? ORDER BY operationId";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, Timestamp.valueOf(since));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                consumer.accept(rs.getString("idempotencyKey"), rs.getInt("operationId"));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface IdempotencyKeyConsumer {
+        void accept(String idempotencyKey, int operationId);
+    }
+
+    public long findMaxJournalId() throws SQLException {
+        String sql = "SELECT COALESCE(MAX(journalId), -1) AS maxJournalId FROM CardOperation";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getLong("maxJournalId");
+        }
+    }
+
     public Optional<CardOperation> findById(int operationId) throws SQLException {
         String sql = "SELECT * FROM CardOperation WHERE operationId = ?";
         Connection conn = DatabaseConnection.getInstance().getConnection();
@@ -232,6 +408,137 @@ public class CardOperationDAO {
         return findByCardAndDateRange(cardId, startDate, endDate);
     }
 
+    public long streamPartitionByDateRange(Connection conn, LocalDateTime startDate, LocalDateTime endDate,
+                                           int partitions, int partition, Consumer<CardOperation> consumer) throws SQLException {
+        String sql = "SELECT * FROM CardOperation WHERE operationDate BETWEEN ? AND ? AND cardId % ? = ? ORDER BY cardId, operationDate, operationId";
+        long count = 0;
+
+        // PostgreSQL only streams with a cursor when autocommit is off and a fetch size is set.
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            stmt.setTimestamp(1, Timestamp.valueOf(startDate));
+            stmt.setTimestamp(2, Timestamp.valueOf(endDate));
+            stmt.setInt(3, partitions);
+            stmt.setInt(4, partition);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToCardOperation(rs));
+                    count++;
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    public Optional<LocalDateTime> findOldestDateBefore(LocalDateTime cutoff) throws SQLException {
+        String sql = "SELECT MIN(operationDate) AS oldest FROM CardOperation WHERE operationDate < ?";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, Timestamp.valueOf(cutoff));
+            ResultSet rs = stmt.executeQuery();
+
+            if (rs.next() && rs.getTimestamp("oldest") != null) {
+                return Optional.of(rs.getTimestamp("oldest").toLocalDateTime());
+            }
+        }
+        return Optional.empty();
+    }
+
+    // Operations dated in [from, until) with their journalId (null if not journaled), grouped by
+    // card: ordered by cardId, then date and id.
+    public long streamDateRangeByCard(Connection conn, LocalDateTime from, LocalDateTime until, JournaledOperationConsumer consumer) throws SQLException {
+        String sql = "SELECT * FROM CardOperation WHERE operationDate >= ? AND operationDate < ? ORDER BY cardId, operationDate, operationId";
+        long count = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            stmt.setTimestamp(1, Timestamp.valueOf(from));
+            stmt.setTimestamp(2, Timestamp.valueOf(until));
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    long journalId = rs.getLong("journalId");
+                    consumer.accept(mapResultSetToCardOperation(rs), rs.wasNull() ? null : journalId);
+                    count++;
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    @FunctionalInterface
+    public interface JournaledOperationConsumer {
+        void accept(CardOperation operation, Long journalId);
+    }
+
+    // Runs in the caller's transaction.
+    public int deleteByIds(Connection conn, int[] operationIds) throws SQLException {
+        String sql = "DELETE FROM CardOperation WHERE operationId = ANY(?)";
+        Integer[] ids = new Integer[operationIds.length];
+        for (int i = 0; i < operationIds.length; i++) {
+            ids[i] = operationIds[i];
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("integer", ids));
+            return stmt.executeUpdate();
+        }
+    }
+
+    public long streamAllByCard(Connection conn, Consumer<CardOperation> consumer) throws SQLException {
+        String sql = "SELECT * FROM CardOperation ORDER BY cardId, operationDate, operationId";
+        long count = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToCardOperation(rs));
+                    count++;
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    public void sumAmountsByCardSince(LocalDateTime monthStart, LocalDateTime dayStart, CardTotalsConsumer consumer) throws SQLException {
+        String sql = "SELECT cardId, SUM(amount) AS monthTotal, COALESCE(SUM(amount) FILTER (WHERE operationDate >= ?), 0) AS dayTotal FROM CardOperation WHERE operationDate >= ? GROUP BY cardId";
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, Timestamp.valueOf(dayStart));
+            stmt.setTimestamp(2, Timestamp.valueOf(monthStart));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                consumer.accept(rs.getInt("cardId"), rs.getBigDecimal("monthTotal"), rs.getBigDecimal("dayTotal"));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface CardTotalsConsumer {
+        void accept(int cardId, BigDecimal monthTotal, BigDecimal dayTotal);
+    }
+
     private CardOperation mapResultSetToCardOperation(ResultSet rs) throws SQLException {
         return new CardOperation(
             rs.getInt("operationId"),
@@ -239,7 +546,8 @@ public class CardOperationDAO {
             rs.getBigDecimal("amount"),
             OperationType.valueOf(rs.getString("operationType")),
             rs.getString("location"),
-            rs.getInt("cardId")
+            rs.getInt("cardId"),
+            rs.getString("idempotencyKey")
         );
     }
 }
@@ -5,8 +5,11 @@ import util.DatabaseConnection;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 public class CustomerDAO {
 
@@ -43,6 +46,25 @@ public class CustomerDAO {
         }
     }
 
+    public Set<Integer> findExistingCustomerIds(Collection<Integer> customerIds) throws SQLException {
+        String sql = "SELECT customerId FROM Customer WHERE customerId = ANY(?)";
+        Set<Integer> existing = new HashSet<>();
+        if (customerIds.isEmpty()) {
+            return existing;
+        }
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("integer", customerIds.toArray()));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                existing.add(rs.getInt("customerId"));
+            }
+        }
+        return existing;
+    }
+
     public List<Customer> findAll() throws SQLException {
         String sql = "SELECT * FROM Customer ORDER BY fullName";
         List<Customer> customers = new ArrayList<>();
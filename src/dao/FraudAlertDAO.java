@@ -2,17 +2,17 @@ package dao;
 
 import entity.FraudAlert;
 import entity.enums.AlertLevel;
+import entity.enums.FraudRule;
 import util.DatabaseConnection;
 
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.time.LocalDateTime;
+import java.util.*;
 
 public class FraudAlertDAO {
 
     public FraudAlert save(FraudAlert fraudAlert) throws SQLException {
-        String sql = "INSERT INTO FraudAlert (description, alertLevel, cardId, creationDate) VALUES (?, ?::alert_level, ?, ?) RETURNING alertId";
+        String sql = "INSERT INTO FraudAlert (description, alertLevel, cardId, creationDate, ruleCode, triggeringOperationIds, measuredValue, thresholdValue) VALUES (?, ?::alert_level, ?, ?, ?::fraud_rule, ?, ?, ?) ON CONFLICT DO NOTHING RETURNING alertId";
         Connection conn = DatabaseConnection.getInstance().getConnection();
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -20,12 +20,25 @@ public class FraudAlertDAO {
             stmt.setString(2, fraudAlert.alertLevel().name());
             stmt.setInt(3, fraudAlert.cardId());
             stmt.setTimestamp(4, Timestamp.valueOf(fraudAlert.creationDate()));
+            if (fraudAlert.ruleCode() != null) {
+                stmt.setString(5, fraudAlert.ruleCode().name());
+            } else {
+                stmt.setNull(5, Types.OTHER);
+            }
+            stmt.setArray(6, conn.createArrayOf("integer", fraudAlert.operationIds().toArray()));
+            stmt.setBigDecimal(7, fraudAlert.measuredValue());
+            stmt.setBigDecimal(8, fraudAlert.thresholdValue());
 
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 int alertId = rs.getInt("alertId");
                 return new FraudAlert(alertId, fraudAlert.description(), fraudAlert.alertLevel(),
-                                    fraudAlert.cardId(), fraudAlert.creationDate());
+                                    fraudAlert.cardId(), fraudAlert.creationDate(), fraudAlert.ruleCode(),
+                                    fraudAlert.operationIds(), fraudAlert.measuredValue(), fraudAlert.thresholdValue());
+            }
+            if (fraudAlert.ruleCode() != null) {
+                // Same rule already raised for the same operations on this card.
+                return fraudAlert;
             }
             throw new SQLException("Failed to create fraud alert");
         }
@@ -101,6 +114,58 @@ public class FraudAlertDAO {
         return findByAlertLevel(AlertLevel.CRITICAL);
     }
 
+    public List<FraudAlert> findByRuleCode(FraudRule ruleCode) throws SQLException {
+        String sql = "SELECT * FROM FraudAlert WHERE ruleCode = ?::fraud_rule ORDER BY creationDate DESC";
+        List<FraudAlert> fraudAlerts = new ArrayList<>();
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, ruleCode.name());
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                fraudAlerts.add(mapResultSetToFraudAlert(rs));
+            }
+        }
+        return fraudAlerts;
+    }
+
+    public Map<FraudRule, Long> countByRuleCode(LocalDateTime since) throws SQLException {
+        String sql = "SELECT ruleCode, COUNT(*) AS alertCount FROM FraudAlert WHERE ruleCode IS NOT NULL AND creationDate >= ? GROUP BY ruleCode";
+        Map<FraudRule, Long> counts = new EnumMap<>(FraudRule.class);
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, Timestamp.valueOf(since));
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                counts.put(FraudRule.valueOf(rs.getString("ruleCode")), rs.getLong("alertCount"));
+            }
+        }
+        return counts;
+    }
+
+    public Set<String> findRuleKeysByCardId(int cardId) throws SQLException {
+        String sql = "SELECT ruleCode, triggeringOperationIds FROM FraudAlert WHERE cardId = ? AND ruleCode IS NOT NULL";
+        Set<String> keys = new HashSet<>();
+        Connection conn = DatabaseConnection.getInstance().getConnection();
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, cardId);
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                keys.add(ruleKey(FraudRule.valueOf(rs.getString("ruleCode")), readOperationIds(rs)));
+            }
+        }
+        return keys;
+    }
+
+    public static String ruleKey(FraudRule ruleCode, List<Integer> operationIds) {
+        return ruleCode.name() + operationIds;
+    }
+
     public boolean delete(int alertId) throws SQLException {
         String sql = "DELETE FROM FraudAlert WHERE alertId = ?";
         Connection conn = DatabaseConnection.getInstance().getConnection();
@@ -113,12 +178,25 @@ public class FraudAlertDAO {
     }
 
     private FraudAlert mapResultSetToFraudAlert(ResultSet rs) throws SQLException {
+        String ruleCode = rs.getString("ruleCode");
         return new FraudAlert(
             rs.getInt("alertId"),
             rs.getString("description"),
             AlertLevel.valueOf(rs.getString("alertLevel")),
             rs.getInt("cardId"),
-            rs.getTimestamp("creationDate").toLocalDateTime()
+            rs.getTimestamp("creationDate").toLocalDateTime(),
+            ruleCode == null ? null : FraudRule.valueOf(ruleCode),
+            readOperationIds(rs),
+            rs.getBigDecimal("measuredValue"),
+            rs.getBigDecimal("thresholdValue")
         );
     }
+
+    private List<Integer> readOperationIds(ResultSet rs) throws SQLException {
+        Array array = rs.getArray("triggeringOperationIds");
+        if (array == null) {
+            return List.of();
+        }
+        return Arrays.asList((Integer[]) array.getArray());
+    }
 }
@@ -0,0 +1,41 @@
+package dao;
+
+import java.sql.*;
+import java.util.Optional;
+
+public class ImportCheckpointDAO {
+
+    public Optional<Long> findOffset(Connection conn, String filePath) throws SQLException {
+        String sql = "SELECT byteOffset FROM ImportCheckpoint WHERE filePath = ?";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, filePath);
+            ResultSet rs = stmt.executeQuery();
+
+            if (rs.next()) {
+                return Optional.of(rs.getLong("byteOffset"));
+            }
+            return Optional.empty();
+        }
+    }
+
+    public void save(Connection conn, String filePath, long byteOffset) throws SQLException {
+        String sql = "INSERT INTO ImportCheckpoint (filePath, byteOffset) VALUES (?, ?) " +
+                     "ON CONFLICT (filePath) DO UPDATE SET byteOffset = EXCLUDED.byteOffset, updatedAt = CURRENT_TIMESTAMP";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, filePath);
+            stmt.setLong(2, byteOffset);
+            stmt.executeUpdate();
+        }
+    }
+
+    public void delete(Connection conn, String filePath) throws SQLException {
+        String sql = "DELETE FROM ImportCheckpoint WHERE filePath = ?";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, filePath);
+            stmt.executeUpdate();
+        }
+    }
+}
@@ -11,6 +11,7 @@ public sealed class Card permits DebitCard, CreditCard, PrepaidCard {
     private LocalDate expirationDate;
     private CardStatus cardStatus;
     private int customerId;
+    private int version;
 
     public Card(int cardId, String cardNumber, LocalDate expirationDate, CardStatus cardStatus, int customerId) {
         this.cardId = cardId;
@@ -60,6 +61,14 @@ public sealed class Card permits DebitCard, CreditCard, PrepaidCard {
         this.customerId = customerId;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     public CardStatus getStatus() {
         return cardStatus;
     }
@@ -10,8 +10,14 @@ public record CardOperation(
     BigDecimal amount,
     OperationType operationType,
     String location,
-    int cardId
+    int cardId,
+    String idempotencyKey
 ) {
+    public CardOperation(int operationId, LocalDateTime operationDate, BigDecimal amount, OperationType operationType,
+                         String location, int cardId) {
+        this(operationId, operationDate, amount, operationType, location, cardId, null);
+    }
+
     public OperationType getType() {
         return operationType;
     }
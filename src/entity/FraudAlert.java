@@ -1,15 +1,30 @@
 package entity;
 
 import entity.enums.AlertLevel;
+import entity.enums.FraudRule;
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.List;
 
 public record FraudAlert(
     int alertId,
     String description,
     AlertLevel alertLevel,
     int cardId,
-    LocalDateTime creationDate
+    LocalDateTime creationDate,
+    FraudRule ruleCode,
+    List<Integer> operationIds,
+    BigDecimal measuredValue,
+    BigDecimal thresholdValue
 ) {
+    public FraudAlert(int alertId, String description, AlertLevel alertLevel, int cardId, LocalDateTime creationDate) {
+        this(alertId, description, alertLevel, cardId, creationDate, null, List.of(), null, null);
+    }
+
+    public FraudAlert {
+        operationIds = operationIds == null ? List.of() : List.copyOf(operationIds);
+    }
+
     public int getAlertId() {
         return alertId;
     }
@@ -29,4 +44,20 @@ public record FraudAlert(
     public LocalDateTime getCreationDate() {
         return creationDate;
     }
+
+    public FraudRule getRuleCode() {
+        return ruleCode;
+    }
+
+    public List<Integer> getOperationIds() {
+        return operationIds;
+    }
+
+    public BigDecimal getMeasuredValue() {
+        return measuredValue;
+    }
+
+    public BigDecimal getThresholdValue() {
+        return thresholdValue;
+    }
 }
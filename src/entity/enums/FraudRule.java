@@ -0,0 +1,7 @@
+package entity.enums;
+
+public enum FraudRule {
+    HIGH_AMOUNT,
+    RAPID_LOCATION_CHANGE,
+    MULTIPLE_ATTEMPTS
+}
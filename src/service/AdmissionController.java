@@ -0,0 +1,188 @@
+package service;
+
+import util.Metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Caps how much work reaches the database at once. The limit adapts to authorization latency,
+// AIMD style: it grows by about one per limit's worth of fast authorizations while the limit is
+// actually in use, and shrinks by a fifth when authorizations are slow or fail, at most once per
+// DECREASE_INTERVAL so one congested moment is not counted many times.
+//
+// Authorizations over the limit wait up to maxQueueWait in a queue no deeper than the limit,
+// then are refused. Reads such as reports only get a share of the limit, never queue, and are
+// not admitted while authorizations are waiting. Their latency does not move the limit.
+public class AdmissionController {
+    private static final int DEFAULT_INITIAL_LIMIT = 64;
+    private static final int DEFAULT_MIN_LIMIT = 8;
+    private static final int DEFAULT_MAX_LIMIT = 1_024;
+    private static final long DEFAULT_TARGET_LATENCY_MS = 50;
+    private static final long DEFAULT_MAX_QUEUE_WAIT_MS = 10;
+    private static final double DECREASE_FACTOR = 0.8;
+    private static final double READ_SHARE = 0.25;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static AdmissionController instance = null;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final long maxQueueWaitNanos;
+    private final ReentrantLock lock;
+    private final Condition released;
+    private double limit;
+    private int inFlight;
+    private int readsInFlight;
+    private int waiting;
+    private long lastDecrease;
+
+    public enum Priority {
+        AUTHORIZATION,
+        READ
+    }
+
+    private AdmissionController(int initialLimit, int minLimit, int maxLimit, long targetLatencyMs, long maxQueueWaitMs) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMs);
+        this.lock = new ReentrantLock();
+        this.released = lock.newCondition();
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+
+        Metrics.registerGauge("admission.limit", () -> (long) currentLimit());
+        Metrics.registerGauge("admission.inFlight", this::inFlight);
+        Metrics.registerGauge("admission.queueDepth", this::queueDepth);
+    }
+
+    public static synchronized AdmissionController getInstance() {
+        if (instance == null) {
+            instance = new AdmissionController(
+                Integer.getInteger("admission.initialLimit", DEFAULT_INITIAL_LIMIT),
+                Integer.getInteger("admission.minLimit", DEFAULT_MIN_LIMIT),
+                Integer.getInteger("admission.maxLimit", DEFAULT_MAX_LIMIT),
+                Long.getLong("admission.targetLatencyMs", DEFAULT_TARGET_LATENCY_MS),
+                Long.getLong("admission.maxQueueWaitMs", DEFAULT_MAX_QUEUE_WAIT_MS));
+        }
+        return instance;
+    }
+
+    // Throws RetryLaterException when the work cannot be admitted. Close the permit when done.
+    public Permit acquire(Priority priority) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (priority == Priority.READ) {
+                if (waiting > 0 || inFlight >= (int) limit || readsInFlight >= Math.max(1, (int) (limit * READ_SHARE))) {
+                    Metrics.increment("admission.rejected.read");
+                    throw new RetryLaterException("System busy, retry later");
+                }
+                readsInFlight++;
+            } else if (inFlight >= (int) limit) {
+                if (waiting >= (int) limit) {
+                    Metrics.increment("admission.rejected.authorization");
+                    throw new RetryLaterException("Operation refused: system busy, retry later");
+                }
+                waiting++;
+                try {
+                    long remaining = maxQueueWaitNanos;
+                    while (inFlight >= (int) limit && remaining > 0) {
+                        remaining = released.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiting--;
+                }
+                if (inFlight >= (int) limit) {
+                    Metrics.increment("admission.rejected.authorization");
+                    throw new RetryLaterException("Operation refused: system busy, retry later");
+                }
+                Metrics.recordNanos("admission.queueWait", System.nanoTime() - start);
+            }
+            inFlight++;
+            return new Permit(priority, System.nanoTime(), inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double currentLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long queueDepth() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Permit permit) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            inFlight--;
+            if (permit.priority == Priority.READ) {
+                readsInFlight--;
+            } else if (permit.failed || now - permit.admittedAt > targetLatencyNanos) {
+                if (now - lastDecrease >= DECREASE_INTERVAL_NANOS) {
+                    limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                    lastDecrease = now;
+                    Metrics.increment("admission.limit.decreased");
+                }
+            } else if (permit.inFlightWhenAdmitted * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public final class Permit implements AutoCloseable {
+        private final Priority priority;
+        private final long admittedAt;
+        private final int inFlightWhenAdmitted;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        private Permit(Priority priority, long admittedAt, int inFlightWhenAdmitted) {
+            this.priority = priority;
+            this.admittedAt = admittedAt;
+            this.inFlightWhenAdmitted = inFlightWhenAdmitted;
+        }
+
+        // The work failed for a reason that points at overload, such as a database error.
+        public void markFailed() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(this);
+            }
+        }
+    }
+}
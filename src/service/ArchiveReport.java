@@ -0,0 +1,13 @@
+package service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+public record ArchiveReport(
+    LocalDateTime cutoff,
+    long partsWritten,
+    long operationsArchived,
+    long operationsDeleted,
+    Duration elapsed
+) {
+}
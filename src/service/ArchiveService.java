@@ -0,0 +1,127 @@
+package service;
+
+import dao.CardOperationDAO;
+import entity.CardOperation;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.Optional;
+
+// Moves operations older than the retention period into OperationArchive, one month at a time.
+// A month's part is on disk before any of its rows are deleted, and only the rows written to it
+// are deleted, in batches of DELETE_BATCH per transaction. A run that stops after writing a part
+// but before deleting leaves the rows in both tiers; readers prefer the hot copy and the next run
+// archives them again.
+public class ArchiveService {
+    private static final int DEFAULT_RETENTION_DAYS = 365;
+    // Fraud rules and spend totals read the last 30 days, so those rows must stay hot.
+    private static final int MIN_RETENTION_DAYS = 90;
+    private static final int DELETE_BATCH = 5_000;
+
+    private final CardOperationDAO operationDAO;
+    private final OperationArchive archive;
+
+    public ArchiveService() {
+        this.operationDAO = new CardOperationDAO();
+        this.archive = OperationArchive.getInstance();
+    }
+
+    public int defaultRetentionDays() {
+        return Integer.getInteger("archive.retentionDays", DEFAULT_RETENTION_DAYS);
+    }
+
+    public ArchiveReport archiveOlderThan(int retentionDays) throws SQLException, IOException {
+        if (retentionDays < MIN_RETENTION_DAYS) {
+            throw new IllegalArgumentException("Retention must be at least " + MIN_RETENTION_DAYS + " days");
+        }
+
+        long start = System.nanoTime();
+        LocalDateTime cutoff = LocalDate.now().minusDays(retentionDays).atStartOfDay();
+        long parts = 0;
+        long archived = 0;
+        long deleted = 0;
+
+        Optional<LocalDateTime> oldest = operationDAO.findOldestDateBefore(cutoff);
+        if (oldest.isPresent()) {
+            try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+                Connection conn = pooled.getConnection();
+                for (YearMonth month = YearMonth.from(oldest.get()); month.atDay(1).atStartOfDay().isBefore(cutoff); month = month.plusMonths(1)) {
+                    LocalDateTime monthEnd = month.plusMonths(1).atDay(1).atStartOfDay();
+                    int[] operationIds = archiveMonth(conn, month, monthEnd.isBefore(cutoff) ? monthEnd : cutoff);
+                    if (operationIds.length == 0) {
+                        continue;
+                    }
+                    parts++;
+                    archived += operationIds.length;
+                    deleted += deleteArchived(conn, operationIds);
+                }
+            }
+        }
+
+        Metrics.add("archive.operationsArchived", archived);
+        Metrics.recordNanos("archive.run", System.nanoTime() - start);
+        return new ArchiveReport(cutoff, parts, archived, deleted, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    // Writes the month's rows up to until into a new part, grouped by card, and returns their ids.
+    private int[] archiveMonth(Connection conn, YearMonth month, LocalDateTime until) throws SQLException, IOException {
+        int[][] ids = {new int[1_024]};
+        int[] count = {0};
+
+        try (OperationArchive.PartWriter writer = archive.openPart(month)) {
+            try {
+                operationDAO.streamDateRangeByCard(conn, month.atDay(1).atStartOfDay(), until, (operation, journalId) -> {
+                    write(writer, operation, journalId);
+                    if (count[0] == ids[0].length) {
+                        ids[0] = Arrays.copyOf(ids[0], count[0] * 2);
+                    }
+                    ids[0][count[0]++] = operation.operationId();
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (count[0] > 0) {
+                writer.commit();
+            }
+        }
+        return Arrays.copyOf(ids[0], count[0]);
+    }
+
+    private long deleteArchived(Connection conn, int[] operationIds) throws SQLException {
+        long deleted = 0;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            for (int from = 0; from < operationIds.length; from += DELETE_BATCH) {
+                int[] batch = Arrays.copyOfRange(operationIds, from, Math.min(operationIds.length, from + DELETE_BATCH));
+                deleted += operationDAO.deleteByIds(conn, batch);
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        Metrics.add("archive.operationsDeleted", deleted);
+        return deleted;
+    }
+
+    private static void write(OperationArchive.PartWriter writer, CardOperation operation, Long journalId) {
+        try {
+            writer.write(operation, journalId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
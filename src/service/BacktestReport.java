@@ -0,0 +1,28 @@
+package service;
+
+import entity.enums.FraudRule;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+
+public record BacktestReport(
+    LocalDateTime startDate,
+    LocalDateTime endDate,
+    long operationsReplayed,
+    long cardsReplayed,
+    Map<FraudRule, Long> alertsByRule,
+    Map<FraudRule, Long> cardsFlaggedByRule,
+    Map<String, Long> cardOverlapByRulePair,
+    Duration elapsed
+) {
+    public double operationsPerSecond() {
+        double seconds = elapsed.toNanos() / 1_000_000_000.0;
+        return seconds == 0 ? operationsReplayed : operationsReplayed / seconds;
+    }
+
+    public double speedupOverRealTime() {
+        Duration replayed = Duration.between(startDate, endDate);
+        return elapsed.isZero() ? Double.POSITIVE_INFINITY : (double) replayed.toNanos() / elapsed.toNanos();
+    }
+}
@@ -0,0 +1,208 @@
+package service;
+
+import dao.CardOperationDAO;
+import entity.CardOperation;
+import entity.enums.FraudRule;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Replays stored operations through a FraudRuleEngine without creating alerts or touching card status.
+public class BacktestService {
+    private final CardOperationDAO operationDAO;
+
+    public BacktestService() {
+        this.operationDAO = new CardOperationDAO();
+    }
+
+    public BacktestReport replay(LocalDateTime startDate, LocalDateTime endDate) throws SQLException {
+        return replay(startDate, endDate, new FraudRuleEngine(), DatabaseConnection.getPoolSize());
+    }
+
+    public BacktestReport replay(LocalDateTime startDate, LocalDateTime endDate, FraudRuleEngine ruleEngine, int partitions) throws SQLException {
+        if (startDate.isAfter(endDate)) {
+            throw new IllegalArgumentException("Start date must be before end date");
+        }
+        if (partitions < 1) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(partitions, DatabaseConnection.getPoolSize()));
+        try {
+            List<Future<PartitionResult>> futures = new ArrayList<>();
+            for (int partition = 0; partition < partitions; partition++) {
+                int current = partition;
+                futures.add(executor.submit(() -> replayPartition(startDate, endDate, ruleEngine, partitions, current)));
+            }
+
+            PartitionResult total = new PartitionResult();
+            for (Future<PartitionResult> future : futures) {
+                total.merge(await(future));
+            }
+
+            return new BacktestReport(
+                startDate,
+                endDate,
+                total.operations,
+                total.cards,
+                Collections.unmodifiableMap(total.alertsByRule),
+                Collections.unmodifiableMap(total.cardsByRule),
+                Collections.unmodifiableMap(total.overlap),
+                Duration.ofNanos(System.nanoTime() - start)
+            );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Same replay over a mapped snapshot. Partitions are contiguous row ranges cut at card
+    // boundaries, so no database connection is used.
+    public BacktestReport replay(OperationSnapshot snapshot, LocalDateTime startDate, LocalDateTime endDate,
+                                 FraudRuleEngine ruleEngine, int partitions) throws SQLException {
+        if (startDate.isAfter(endDate)) {
+            throw new IllegalArgumentException("Start date must be before end date");
+        }
+        if (partitions < 1) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<PartitionResult>> futures = new ArrayList<>();
+            int rowsPerPartition = Math.max(1, snapshot.rowCount() / partitions);
+            int fromRow = 0;
+            while (fromRow < snapshot.rowCount()) {
+                int partitionStart = fromRow;
+                int partitionEnd = snapshot.nextCardStart(Math.min(snapshot.rowCount(), fromRow + rowsPerPartition));
+                futures.add(executor.submit(() -> replaySnapshotRows(snapshot, partitionStart, partitionEnd, startDate, endDate, ruleEngine)));
+                fromRow = partitionEnd;
+            }
+
+            PartitionResult total = new PartitionResult();
+            for (Future<PartitionResult> future : futures) {
+                total.merge(await(future));
+            }
+
+            return new BacktestReport(
+                startDate,
+                endDate,
+                total.operations,
+                total.cards,
+                Collections.unmodifiableMap(total.alertsByRule),
+                Collections.unmodifiableMap(total.cardsByRule),
+                Collections.unmodifiableMap(total.overlap),
+                Duration.ofNanos(System.nanoTime() - start)
+            );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private PartitionResult replaySnapshotRows(OperationSnapshot snapshot, int fromRow, int toRow,
+                                               LocalDateTime startDate, LocalDateTime endDate, FraudRuleEngine ruleEngine) {
+        PartitionResult result = new PartitionResult();
+        List<CardOperation> cardOperations = new ArrayList<>();
+        long first = OperationSnapshot.toEpochSecond(startDate);
+        long last = OperationSnapshot.toEpochSecond(endDate);
+
+        snapshot.scan(fromRow, toRow, (row, cardId, epochSecond) -> {
+            if (epochSecond < first || epochSecond > last) {
+                return;
+            }
+            if (!cardOperations.isEmpty() && cardOperations.get(0).getCardId() != cardId) {
+                evaluateCard(cardOperations, ruleEngine, result);
+                cardOperations.clear();
+            }
+            cardOperations.add(snapshot.operation(row, epochSecond));
+            result.operations++;
+        });
+
+        if (!cardOperations.isEmpty()) {
+            evaluateCard(cardOperations, ruleEngine, result);
+        }
+        return result;
+    }
+
+    private PartitionResult replayPartition(LocalDateTime startDate, LocalDateTime endDate, FraudRuleEngine ruleEngine,
+                                            int partitions, int partition) throws SQLException {
+        PartitionResult result = new PartitionResult();
+        List<CardOperation> cardOperations = new ArrayList<>();
+
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            result.operations = operationDAO.streamPartitionByDateRange(pooled.getConnection(), startDate, endDate, partitions, partition, op -> {
+                if (!cardOperations.isEmpty() && cardOperations.get(0).getCardId() != op.getCardId()) {
+                    evaluateCard(cardOperations, ruleEngine, result);
+                    cardOperations.clear();
+                }
+                cardOperations.add(op);
+            });
+        }
+
+        if (!cardOperations.isEmpty()) {
+            evaluateCard(cardOperations, ruleEngine, result);
+        }
+        return result;
+    }
+
+    private void evaluateCard(List<CardOperation> chronological, FraudRuleEngine ruleEngine, PartitionResult result) {
+        // The rules expect the most recent operation first, as returned by CardOperationDAO.findByCardId.
+        List<CardOperation> mostRecentFirst = new ArrayList<>(chronological);
+        Collections.reverse(mostRecentFirst);
+
+        EnumSet<FraudRule> firedRules = EnumSet.noneOf(FraudRule.class);
+        for (FraudFinding finding : ruleEngine.evaluate(mostRecentFirst)) {
+            result.alertsByRule.merge(finding.rule(), 1L, Long::sum);
+            firedRules.add(finding.rule());
+        }
+
+        result.cards++;
+        for (FraudRule rule : firedRules) {
+            result.cardsByRule.merge(rule, 1L, Long::sum);
+        }
+
+        List<FraudRule> fired = new ArrayList<>(firedRules);
+        for (int i = 0; i < fired.size(); i++) {
+            for (int j = i + 1; j < fired.size(); j++) {
+                result.overlap.merge(fired.get(i) + "+" + fired.get(j), 1L, Long::sum);
+            }
+        }
+    }
+
+    private PartitionResult await(Future<PartitionResult> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Backtest interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new SQLException("Backtest partition failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static final class PartitionResult {
+        private long operations;
+        private long cards;
+        private final Map<FraudRule, Long> alertsByRule = new EnumMap<>(FraudRule.class);
+        private final Map<FraudRule, Long> cardsByRule = new EnumMap<>(FraudRule.class);
+        private final Map<String, Long> overlap = new TreeMap<>();
+
+        private void merge(PartitionResult other) {
+            operations += other.operations;
+            cards += other.cards;
+            other.alertsByRule.forEach((rule, count) -> alertsByRule.merge(rule, count, Long::sum));
+            other.cardsByRule.forEach((rule, count) -> cardsByRule.merge(rule, count, Long::sum));
+            other.overlap.forEach((pair, count) -> overlap.merge(pair, count, Long::sum));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package service;
+
+import entity.*;
+import entity.enums.CardType;
+import util.Metrics;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+// Read-through cache of card rows shared by every CardService instance. Entries live in
+// access-ordered segments so a hot card never waits on a lookup for an unrelated one.
+// Card is mutable, so callers always get their own copy.
+//
+// Loads run outside the segment lock. A loaded row is only installed if nothing in its segment
+// was put or invalidated since the load began, so a slow read of an old row cannot replace a
+// newer one. The segment keeps that time itself rather than as an entry, where eviction or
+// expiry could drop it mid-load; a write to another card in the segment only costs the load
+// its caching.
+public class CardCache {
+    private static final int MAX_SIZE = 100_000;
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(5);
+    private static final int SEGMENTS = 16;
+
+    private static CardCache instance = null;
+
+    private final Segment[] segments;
+    private final long timeToLiveNanos;
+
+    @FunctionalInterface
+    public interface CardLoader {
+        Optional<Card> load(int cardId) throws SQLException;
+    }
+
+    private CardCache(int maxSize, Duration timeToLive) {
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxSize / SEGMENTS));
+        }
+        this.timeToLiveNanos = timeToLive.toNanos();
+        Metrics.registerGauge("cardCache.size", this::size);
+    }
+
+    public static synchronized CardCache getInstance() {
+        if (instance == null) {
+            instance = new CardCache(MAX_SIZE, TIME_TO_LIVE);
+        }
+        return instance;
+    }
+
+    public Optional<Card> get(int cardId, CardLoader loader) throws SQLException {
+        Card cached = lookup(cardId);
+        if (cached != null) {
+            Metrics.increment("cardCache.hit");
+            return Optional.of(copyOf(cached));
+        }
+
+        Metrics.increment("cardCache.miss");
+        long started = System.nanoTime();
+        Optional<Card> loaded = loader.load(cardId);
+        loaded.ifPresent(card -> putIfUnchangedSince(card, started));
+        return loaded;
+    }
+
+    public CardType peekCardType(int cardId) {
+        Card cached = lookup(cardId);
+        return cached == null ? null : cached.getCardType();
+    }
+
+    public void put(Card card) {
+        Segment segment = segmentFor(card.getCardId());
+        synchronized (segment) {
+            long now = System.nanoTime();
+            segment.put(card.getCardId(), new Entry(copyOf(card), now));
+            segment.lastChangedAt = now;
+        }
+    }
+
+    private void putIfUnchangedSince(Card card, long started) {
+        Segment segment = segmentFor(card.getCardId());
+        synchronized (segment) {
+            if (segment.lastChangedAt - started >= 0) {
+                Metrics.increment("cardCache.staleLoadDiscarded");
+                return;
+            }
+            segment.put(card.getCardId(), new Entry(copyOf(card), System.nanoTime()));
+        }
+    }
+
+    public void invalidate(int cardId) {
+        Segment segment = segmentFor(cardId);
+        synchronized (segment) {
+            segment.remove(cardId);
+            segment.lastChangedAt = System.nanoTime();
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Card lookup(int cardId) {
+        Segment segment = segmentFor(cardId);
+        synchronized (segment) {
+            Entry entry = segment.get(cardId);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.loadedAt() > timeToLiveNanos) {
+                segment.remove(cardId);
+                Metrics.increment("cardCache.expired");
+                return null;
+            }
+            return entry.card();
+        }
+    }
+
+    private Segment segmentFor(int cardId) {
+        int hash = cardId * 0x9E3779B9;
+        return segments[(hash >>> 16) % SEGMENTS];
+    }
+
+    private static Card copyOf(Card card) {
+        Card copy;
+        if (card instanceof DebitCard) {
+            DebitCard debitCard = (DebitCard) card;
+            copy = new DebitCard(card.getCardId(), card.getCardNumber(), card.getExpirationDate(),
+                card.getCardStatus(), card.getCustomerId(), debitCard.getDailyLimit());
+        } else if (card instanceof CreditCard) {
+            CreditCard creditCard = (CreditCard) card;
+            copy = new CreditCard(card.getCardId(), card.getCardNumber(), card.getExpirationDate(),
+                card.getCardStatus(), card.getCustomerId(), creditCard.getMonthlyLimit(), creditCard.getInterestRate());
+        } else {
+            PrepaidCard prepaidCard = (PrepaidCard) card;
+            copy = new PrepaidCard(card.getCardId(), card.getCardNumber(), card.getExpirationDate(),
+                card.getCardStatus(), card.getCustomerId(), prepaidCard.getAvailableBalance());
+        }
+        copy.setVersion(card.getVersion());
+        return copy;
+    }
+
+    private record Entry(Card card, long loadedAt) {}
+
+    private static final class Segment extends LinkedHashMap<Integer, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        // When a card in this segment was last put or invalidated.
+        private long lastChangedAt;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.lastChangedAt = System.nanoTime();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            if (size() > capacity) {
+                Metrics.increment("cardCache.eviction");
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package service;
+
+import util.Metrics;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One lock per card that currently has a caller, created on demand and dropped when the last
+// caller leaves. Stripes only guard the short lookup of that lock, so callers on different cards
+// never wait on each other's critical sections.
+public class CardLockManager {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int MAX_TRACKED_HOT_CARDS = 10_000;
+
+    private static CardLockManager instance = null;
+
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<Integer, LongAdder> waitNanosByCard;
+
+    public CardLockManager(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Stripe count must be positive");
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.waitNanosByCard = new ConcurrentHashMap<>();
+    }
+
+    public static synchronized CardLockManager getInstance() {
+        if (instance == null) {
+            instance = new CardLockManager(Integer.getInteger("cardLocks.stripes", DEFAULT_STRIPES));
+            Metrics.registerGauge("cardLock.lockedCards", instance::lockedCards);
+        }
+        return instance;
+    }
+
+    public Handle lock(int cardId) {
+        Stripe stripe = stripeFor(cardId);
+        LockEntry entry;
+        synchronized (stripe) {
+            entry = stripe.entries.computeIfAbsent(cardId, key -> new LockEntry());
+            entry.users++;
+        }
+
+        if (!entry.lock.tryLock()) {
+            long start = System.nanoTime();
+            entry.lock.lock();
+            recordWait(cardId, System.nanoTime() - start);
+        }
+        return new Handle(cardId, stripe, entry);
+    }
+
+    public Map<Integer, Long> hottestCards(int limit) {
+        Map<Integer, Long> hottest = new LinkedHashMap<>();
+        waitNanosByCard.entrySet().stream()
+            .sorted(Map.Entry.<Integer, LongAdder>comparingByValue(
+                (first, second) -> Long.compare(second.sum(), first.sum())))
+            .limit(limit)
+            .forEach(entry -> hottest.put(entry.getKey(), entry.getValue().sum() / 1_000));
+        return hottest;
+    }
+
+    public int lockedCards() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.entries.size();
+            }
+        }
+        return count;
+    }
+
+    private void recordWait(int cardId, long waitNanos) {
+        Metrics.recordNanos("cardLock.wait", waitNanos);
+        LongAdder total = waitNanosByCard.get(cardId);
+        if (total == null && waitNanosByCard.size() < MAX_TRACKED_HOT_CARDS) {
+            total = waitNanosByCard.computeIfAbsent(cardId, key -> new LongAdder());
+        }
+        if (total != null) {
+            total.add(waitNanos);
+        }
+    }
+
+    private Stripe stripeFor(int cardId) {
+        int hash = cardId * 0x9E3779B9;
+        return stripes[Math.floorMod(hash ^ (hash >>> 16), stripes.length)];
+    }
+
+    public final class Handle implements AutoCloseable {
+        private final int cardId;
+        private final Stripe stripe;
+        private final LockEntry entry;
+
+        private Handle(int cardId, Stripe stripe, LockEntry entry) {
+            this.cardId = cardId;
+            this.stripe = stripe;
+            this.entry = entry;
+        }
+
+        @Override
+        public void close() {
+            entry.lock.unlock();
+            synchronized (stripe) {
+                if (--entry.users == 0) {
+                    stripe.entries.remove(cardId);
+                }
+            }
+        }
+    }
+
+    private static final class Stripe {
+        private final Map<Integer, LockEntry> entries = new HashMap<>();
+    }
+
+    private static final class LockEntry {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users = 0;
+    }
+}
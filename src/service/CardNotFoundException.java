@@ -0,0 +1,11 @@
+package service;
+
+// No card has the requested id. An IllegalArgumentException, so callers that treat bad input
+// alike need not tell it apart.
+public class CardNotFoundException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public CardNotFoundException(int cardId) {
+        super("Card not found: " + cardId);
+    }
+}
@@ -0,0 +1,136 @@
+package service;
+
+import dao.CardDAO;
+import util.BloomFilter;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.LongIntHashMap;
+import util.Metrics;
+import util.PanHasher;
+
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Maps the first 64 bits of each card number's keyed hash to its cardId, so a lookup by card
+// number is one hash plus one in-memory probe before the usual lookup by id.
+public class CardNumberIndex {
+    private static final int EXPECTED_CARDS = 1 << 16;
+    private static final int MIN_BLOOM_CAPACITY = 1_000_000;
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private static CardNumberIndex instance = null;
+
+    private final CardDAO cardDAO;
+    private final LongIntHashMap cardIdsByHash;
+    private final ReadWriteLock lock;
+    private volatile BloomFilter issuedNumbers;
+    private volatile boolean loaded = false;
+
+    private CardNumberIndex() {
+        this.cardDAO = new CardDAO();
+        this.cardIdsByHash = new LongIntHashMap(EXPECTED_CARDS);
+        this.lock = new ReentrantReadWriteLock();
+        Metrics.registerGauge("cardNumberIndex.size", this::size);
+    }
+
+    public static synchronized CardNumberIndex getInstance() {
+        if (instance == null) {
+            instance = new CardNumberIndex();
+        }
+        return instance;
+    }
+
+    // Stored hashes made with an earlier PAN_HASH_KEY would never match a lookup, so they are all
+    // rewritten with the current key before the index is built from them.
+    public synchronized void load() throws SQLException {
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            if (!cardDAO.cardNumberHashesMatchKey(pooled.getConnection())) {
+                int rehashed = cardDAO.rehashCardNumbers(pooled.getConnection());
+                Metrics.add("cardNumberIndex.rehashed", rehashed);
+            }
+            int backfilled = cardDAO.backfillCardNumberHashes(pooled.getConnection());
+            Metrics.add("cardNumberIndex.backfilled", backfilled);
+
+            lock.writeLock().lock();
+            try {
+                cardIdsByHash.clear();
+                cardDAO.streamCardNumberHashes(pooled.getConnection(),
+                    (cardId, hash) -> cardIdsByHash.put(PanHasher.prefix(hash), cardId));
+
+                // Sized for twice the current card count so issuance can keep adding to it.
+                BloomFilter bloom = new BloomFilter(
+                    Math.max(MIN_BLOOM_CAPACITY, 2L * cardIdsByHash.size()), BLOOM_FALSE_POSITIVE_RATE);
+                cardIdsByHash.forEachKey(bloom::add);
+                issuedNumbers = bloom;
+                loaded = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Empty means the number is definitely unknown. A present id still has to be confirmed
+    // against the card row, since two numbers can share a 64-bit prefix.
+    public Optional<Integer> findCardId(String cardNumber) throws SQLException {
+        if (!loaded) {
+            Metrics.increment("cardNumberIndex.notLoaded");
+            return cardDAO.findByCardNumber(cardNumber).map(card -> card.getCardId());
+        }
+
+        long key = PanHasher.prefix(PanHasher.hash(cardNumber));
+        lock.readLock().lock();
+        try {
+            int cardId = cardIdsByHash.get(key);
+            return cardId < 0 ? Optional.empty() : Optional.of(cardId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lock-free pre-check for issuance. False means no issued number has this hash prefix; true
+    // (including before the index is loaded) means the database has to be asked.
+    public boolean mightBeIssued(long hashPrefix) {
+        BloomFilter bloom = issuedNumbers;
+        return !loaded || bloom.mightContain(hashPrefix);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void add(String cardNumber, int cardId) {
+        long key = PanHasher.prefix(PanHasher.hash(cardNumber));
+        lock.writeLock().lock();
+        try {
+            cardIdsByHash.put(key, cardId);
+            if (issuedNumbers != null) {
+                issuedNumbers.add(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String cardNumber, int cardId) {
+        long key = PanHasher.prefix(PanHasher.hash(cardNumber));
+        lock.writeLock().lock();
+        try {
+            if (cardIdsByHash.get(key) == cardId) {
+                cardIdsByHash.remove(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long size() {
+        lock.readLock().lock();
+        try {
+            return cardIdsByHash.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
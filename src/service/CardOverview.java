@@ -0,0 +1,14 @@
+package service;
+
+import entity.Card;
+import entity.CardOperation;
+import entity.FraudAlert;
+
+import java.util.List;
+
+public record CardOverview(
+    Card card,
+    List<CardOperation> recentOperations,
+    List<FraudAlert> alerts
+) {
+}
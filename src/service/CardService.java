@@ -1,31 +1,131 @@
 package service;
 
+import dao.AsyncDAO;
 import dao.CardDAO;
 import entity.*;
 import entity.enums.CardStatus;
+import entity.enums.CardType;
+import util.CardNumberGenerator;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+import util.MoneyUtils;
+import util.PanHasher;
 
 import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class CardService {
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+    private static final int DEFAULT_BIN_START = 453_200;
+    private static final int DEFAULT_BIN_END = 453_299;
+    private static final int OVERVIEW_OPERATIONS = 20;
+
     private final CardDAO cardDAO;
-    private final Random random;
+    private final CardCache cardCache;
+    private final CardStatusRegistry statusRegistry;
+    private final CardStateTable stateTable;
+    private final SpendTracker spendTracker;
+    private final CardNumberIndex cardNumberIndex;
+    private final CardNumberGenerator numberGenerator;
+    private final AsyncDAO asyncDAO;
 
     public CardService() {
         this.cardDAO = new CardDAO();
-        this.random = new Random();
+        this.cardCache = CardCache.getInstance();
+        this.statusRegistry = CardStatusRegistry.getInstance();
+        this.stateTable = CardStateTable.getInstance();
+        this.spendTracker = SpendTracker.getInstance();
+        this.cardNumberIndex = CardNumberIndex.getInstance();
+        this.numberGenerator = new CardNumberGenerator(
+            Integer.getInteger("cards.binStart", DEFAULT_BIN_START),
+            Integer.getInteger("cards.binEnd", DEFAULT_BIN_END));
+        this.asyncDAO = AsyncDAO.getInstance();
+    }
+
+    private String generateCardNumber() throws SQLException {
+        return issueCardNumbers(1).get(0);
+    }
+
+    List<String> issueCardNumbers(int count) throws SQLException {
+        return issueCardNumbers(count, numberGenerator);
+    }
+
+    // Draws unique, Luhn-valid numbers. A candidate the issued-number bloom filter has never seen
+    // is new; the few it flags are confirmed with one database query per round.
+    private List<String> issueCardNumbers(int count, CardNumberGenerator generator) throws SQLException {
+        Set<String> issued = new HashSet<>(count * 2);
+        List<String> numbers = new ArrayList<>(count);
+
+        while (numbers.size() < count) {
+            Map<String, String> toConfirm = new HashMap<>();
+            while (numbers.size() + toConfirm.size() < count) {
+                String number = generator.generate();
+                if (!issued.add(number)) {
+                    Metrics.increment("cards.issue.batchCollision");
+                    continue;
+                }
+
+                byte[] hash = PanHasher.hash(number);
+                if (cardNumberIndex.mightBeIssued(PanHasher.prefix(hash))) {
+                    toConfirm.put(HexFormat.of().formatHex(hash), number);
+                } else {
+                    numbers.add(number);
+                }
+            }
+
+            Set<String> existing = cardDAO.findExistingCardNumberHashes(toConfirm.keySet());
+            Metrics.add("cards.issue.existingCollision", existing.size());
+            toConfirm.forEach((hash, number) -> {
+                if (!existing.contains(hash)) {
+                    numbers.add(number);
+                }
+            });
+        }
+        return numbers;
     }
 
-    private String generateCardNumber() {
-        StringBuilder number = new StringBuilder();
-        for (int i = 0; i < 16; i++) {
-            number.append(random.nextInt(10));
+    public <T extends Card> List<T> createCards(List<T> cards) throws SQLException {
+        return createCards(cards, numberGenerator);
+    }
+
+    // Bulk issuance: numbers are assigned here and the rows go in as JDBC batches. The cards are
+    // not put in the cache, so a large run does not evict the working set.
+    public <T extends Card> List<T> createCards(List<T> cards, CardNumberGenerator generator) throws SQLException {
+        long start = System.nanoTime();
+        List<String> numbers = issueCardNumbers(cards.size(), generator);
+        LocalDate expiration = LocalDate.now().plusYears(3);
+
+        for (int i = 0; i < cards.size(); i++) {
+            T card = cards.get(i);
+            card.setCardNumber(numbers.get(i));
+            if (card.getExpirationDate() == null) {
+                card.setExpirationDate(expiration);
+            }
+        }
+
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            cardDAO.saveAll(pooled.getConnection(), cards);
+        }
+        for (T card : cards) {
+            stateTable.put(card);
+            cardNumberIndex.add(card.getCardNumber(), card.getCardId());
+            statusRegistry.recordStatus(card.getCardId(), card.getStatus());
         }
-        return number.toString();
+
+        Metrics.add("cards.issued", cards.size());
+        Metrics.recordNanos("cards.issue.batch", System.nanoTime() - start);
+        return cards;
     }
 
     public DebitCard createDebitCard(int customerId, BigDecimal dailyLimit) throws SQLException {
@@ -33,7 +133,9 @@ public class CardService {
         LocalDate expiration = LocalDate.now().plusYears(3);
 
         DebitCard card = new DebitCard(0, number, expiration, CardStatus.ACTIVE, customerId, dailyLimit);
-        return (DebitCard) cardDAO.save(card);
+        DebitCard saved = (DebitCard) cardDAO.save(card);
+        cardCreated(saved);
+        return saved;
     }
 
     public CreditCard createCreditCard(int customerId, BigDecimal monthlyLimit, BigDecimal interestRate) throws SQLException {
@@ -41,7 +143,9 @@ public class CardService {
         LocalDate expiration = LocalDate.now().plusYears(3);
 
         CreditCard card = new CreditCard(0, number, expiration, CardStatus.ACTIVE, customerId, monthlyLimit, interestRate);
-        return (CreditCard) cardDAO.save(card);
+        CreditCard saved = (CreditCard) cardDAO.save(card);
+        cardCreated(saved);
+        return saved;
     }
 
     public PrepaidCard createPrepaidCard(int customerId, BigDecimal initialBalance) throws SQLException {
@@ -49,60 +153,124 @@ public class CardService {
         LocalDate expiration = LocalDate.now().plusYears(3);
 
         PrepaidCard card = new PrepaidCard(0, number, expiration, CardStatus.ACTIVE, customerId, initialBalance);
-        return (PrepaidCard) cardDAO.save(card);
+        PrepaidCard saved = (PrepaidCard) cardDAO.save(card);
+        cardCreated(saved);
+        return saved;
     }
 
     public boolean activateCard(int cardId) throws SQLException {
-        Optional<Card> cardOpt = cardDAO.findById(cardId);
-        if (cardOpt.isEmpty()) {
-            throw new IllegalArgumentException("Card not found");
-        }
+        return changeStatus(cardId, CardStatus.ACTIVE);
+    }
 
-        Card card = cardOpt.get();
-        if (card.getStatus() == CardStatus.ACTIVE) {
-            throw new IllegalStateException("Card is already active");
-        }
+    public boolean suspendCard(int cardId) throws SQLException {
+        return changeStatus(cardId, CardStatus.SUSPENDED);
+    }
+
+    public boolean blockCard(int cardId) throws SQLException {
+        return changeStatus(cardId, CardStatus.BLOCKED);
+    }
 
-        card.setStatus(CardStatus.ACTIVE);
-        return cardDAO.update(card);
+    public List<Integer> blockCardsByCustomer(int customerId) throws SQLException {
+        List<Integer> cardIds = cardDAO.updateStatusByCustomerId(customerId, CardStatus.BLOCKED);
+        cardIds.forEach(cardId -> applyStatus(cardId, CardStatus.BLOCKED));
+        return cardIds;
     }
 
-    public boolean suspendCard(int cardId) throws SQLException {
-        Optional<Card> cardOpt = cardDAO.findById(cardId);
-        if (cardOpt.isEmpty()) {
-            throw new IllegalArgumentException("Card not found");
+    // Suspends the listed cards that are active; blocked and already suspended cards are left alone.
+    public List<Integer> suspendCards(List<Integer> cardIds) throws SQLException {
+        if (cardIds.isEmpty()) {
+            return List.of();
         }
+        List<Integer> updatedIds = cardDAO.updateStatus(cardIds, CardStatus.ACTIVE, CardStatus.SUSPENDED);
+        updatedIds.forEach(cardId -> applyStatus(cardId, CardStatus.SUSPENDED));
+        return updatedIds;
+    }
 
-        Card card = cardOpt.get();
-        card.setStatus(CardStatus.SUSPENDED);
-        return cardDAO.update(card);
+    // One conditional UPDATE from the status we believe the card has. If someone changed it in the
+    // meantime nothing is written, and we retry from the row as it is now. False once the retries
+    // are used up without a write.
+    private boolean changeStatus(int cardId, CardStatus status) throws SQLException {
+        for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS; attempt++) {
+            CardStatus current = attempt == 1 ? knownStatus(cardId) : readStatus(cardId);
+            if (current == status && attempt == 1) {
+                // The state table or cache may lag the row; only the row can say there is nothing to do.
+                current = readStatus(cardId);
+            }
+
+            if (status == CardStatus.ACTIVE && current == CardStatus.ACTIVE) {
+                throw new CardStatusConflictException("Card is already active");
+            }
+            if (status == CardStatus.SUSPENDED && current == CardStatus.BLOCKED) {
+                // Suspending is weaker than blocking; only reactivation lifts a block.
+                throw new CardStatusConflictException("Card is blocked, not suspended");
+            }
+            if (attempt > 1 && status == CardStatus.ACTIVE && current == CardStatus.BLOCKED) {
+                // Blocked while we were reactivating it: the block wins, whoever wrote last.
+                throw new CardStatusConflictException("Card was blocked concurrently, not reactivated");
+            }
+            if (current == status) {
+                applyStatus(cardId, status);
+                return true;
+            }
+
+            if (cardDAO.updateStatus(cardId, current, status)) {
+                applyStatus(cardId, status);
+                return true;
+            }
+            cardCache.invalidate(cardId);
+            Metrics.increment("card.update.conflict");
+        }
+        return false;
     }
 
-    public boolean blockCard(int cardId) throws SQLException {
-        Optional<Card> cardOpt = cardDAO.findById(cardId);
-        if (cardOpt.isEmpty()) {
-            throw new IllegalArgumentException("Card not found");
+    private CardStatus knownStatus(int cardId) throws SQLException {
+        CardStatus status = stateTable.cardStatus(cardId);
+        if (status != null) {
+            return status;
         }
+        return loadCard(cardId)
+            .map(Card::getStatus)
+            .orElseThrow(() -> new CardNotFoundException(cardId));
+    }
 
-        Card card = cardOpt.get();
-        card.setStatus(CardStatus.BLOCKED);
-        return cardDAO.update(card);
+    private CardStatus readStatus(int cardId) throws SQLException {
+        return cardDAO.findById(cardId)
+            .map(Card::getStatus)
+            .orElseThrow(() -> new CardNotFoundException(cardId));
+    }
+
+    private void applyStatus(int cardId, CardStatus status) {
+        cardCache.invalidate(cardId);
+        stateTable.updateStatus(cardId, status);
+        statusRegistry.recordStatus(cardId, status);
     }
 
     public boolean verifyLimit(int cardId, BigDecimal amount) throws SQLException {
-        Optional<Card> cardOpt = cardDAO.findById(cardId);
+        long spentToday = spendTracker.spentTodayCents(cardId);
+        long spentThisMonth = spendTracker.spentThisMonthCents(cardId);
+
+        CardStateTable.Decision decision = stateTable.decide(cardId, amount, LocalDate.now(), spentToday, spentThisMonth);
+        if (decision != CardStateTable.Decision.UNKNOWN) {
+            Metrics.increment("cardState.decided");
+            return decision == CardStateTable.Decision.APPROVED;
+        }
+
+        Optional<Card> cardOpt = loadCard(cardId);
         if (cardOpt.isEmpty()) {
-            throw new IllegalArgumentException("Card not found");
+            throw new CardNotFoundException(cardId);
         }
 
         Card card = cardOpt.get();
+        if (card.getStatus() != CardStatus.ACTIVE || card.getExpirationDate().isBefore(LocalDate.now())) {
+            return false;
+        }
 
         if (card instanceof DebitCard) {
             DebitCard debitCard = (DebitCard) card;
-            return amount.compareTo(debitCard.getDailyLimit()) <= 0;
+            return MoneyUtils.fromCents(spentToday).add(amount).compareTo(debitCard.getDailyLimit()) <= 0;
         } else if (card instanceof CreditCard) {
             CreditCard creditCard = (CreditCard) card;
-            return amount.compareTo(creditCard.getMonthlyLimit()) <= 0;
+            return MoneyUtils.fromCents(spentThisMonth).add(amount).compareTo(creditCard.getMonthlyLimit()) <= 0;
         } else if (card instanceof PrepaidCard) {
             PrepaidCard prepaidCard = (PrepaidCard) card;
             return amount.compareTo(prepaidCard.getAvailableBalance()) <= 0;
@@ -112,7 +280,17 @@ public class CardService {
     }
 
     public Optional<Card> findCardById(int cardId) throws SQLException {
-        return cardDAO.findById(cardId);
+        return loadCard(cardId);
+    }
+
+    // Card, latest operations and alerts for one screen, read concurrently. Empty if there is no such card.
+    public CompletableFuture<Optional<CardOverview>> loadOverview(int cardId) {
+        CompletableFuture<Optional<Card>> card = asyncDAO.supply(() -> loadCard(cardId));
+        CompletableFuture<List<CardOperation>> operations = asyncDAO.findRecentOperationsByCard(cardId, OVERVIEW_OPERATIONS);
+        CompletableFuture<List<FraudAlert>> alerts = asyncDAO.findAlertsByCard(cardId);
+
+        return CompletableFuture.allOf(card, operations, alerts)
+            .thenApply(ignored -> card.join().map(found -> new CardOverview(found, operations.join(), alerts.join())));
     }
 
     public List<Card> findCardsByCustomer(int customerId) throws SQLException {
@@ -124,10 +302,78 @@ public class CardService {
     }
 
     public boolean updateCard(Card card) throws SQLException {
-        return cardDAO.update(card);
+        boolean updated = cardDAO.update(card);
+        if (updated) {
+            cardCache.put(card);
+            stateTable.put(card);
+            cardNumberIndex.add(card.getCardNumber(), card.getCardId());
+            statusRegistry.recordStatus(card.getCardId(), card.getStatus());
+        } else {
+            cardCache.invalidate(card.getCardId());
+        }
+        return updated;
     }
 
     public boolean deleteCard(int cardId) throws SQLException {
-        return cardDAO.delete(cardId);
+        Optional<Card> existing = loadCard(cardId);
+        boolean deleted = cardDAO.delete(cardId);
+        cardCache.invalidate(cardId);
+        if (deleted) {
+            stateTable.remove(cardId);
+            statusRegistry.forget(cardId);
+            existing.ifPresent(card -> cardNumberIndex.remove(card.getCardNumber(), cardId));
+        }
+        return deleted;
+    }
+
+    public Optional<Card> findCardByNumber(String cardNumber) throws SQLException {
+        Optional<Integer> cardId = cardNumberIndex.findCardId(cardNumber);
+        if (cardId.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Optional<Card> card = loadCard(cardId.get())
+            .filter(candidate -> candidate.getCardNumber().equals(cardNumber));
+        if (card.isPresent()) {
+            return card;
+        }
+
+        // Another number shares the hash prefix; the unique hash column settles it.
+        Metrics.increment("cardNumberIndex.prefixCollision");
+        return cardDAO.findByCardNumber(cardNumber);
+    }
+
+    private void cardCreated(Card card) {
+        cardCache.put(card);
+        stateTable.put(card);
+        cardNumberIndex.add(card.getCardNumber(), card.getCardId());
+    }
+
+    private Optional<Card> loadCard(int cardId) throws SQLException {
+        return cardCache.get(cardId, cardDAO::findById);
+    }
+
+    public CardType peekCardType(int cardId) {
+        CardType cardType = stateTable.cardType(cardId);
+        return cardType != null ? cardType : cardCache.peekCardType(cardId);
+    }
+
+    public CardType getCardType(int cardId) throws SQLException {
+        CardType cardType = peekCardType(cardId);
+        if (cardType != null) {
+            return cardType;
+        }
+        return loadCard(cardId)
+            .map(Card::getCardType)
+            .orElseThrow(() -> new CardNotFoundException(cardId));
+    }
+
+    public void applyPrepaidBalance(int cardId, BigDecimal availableBalance) {
+        cardCache.invalidate(cardId);
+        stateTable.updateLimit(cardId, availableBalance);
+    }
+
+    public boolean isCardInactive(int cardId) throws SQLException {
+        return statusRegistry.isInactive(cardId);
     }
 }
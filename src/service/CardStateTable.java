@@ -0,0 +1,300 @@
+package service;
+
+import dao.CardDAO;
+import entity.*;
+import entity.enums.CardStatus;
+import entity.enums.CardType;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+import util.MoneyUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+// Fixed-layout, memory-mapped table of the card fields the authorization path needs, indexed by
+// cardId. It lives outside the heap and is kept in a file, so a restart maps it back instead of
+// reloading every card from the database.
+//
+// The file is only trusted if the last run shut down cleanly and the Card table still has the
+// watermark recorded at that shutdown; after a crash, a restore or changes made while the process
+// was down it is rebuilt from the database.
+public class CardStateTable {
+    private static final Path DEFAULT_FILE = Paths.get("data", "card-state.dat");
+    private static final int MAGIC = 0x43415244;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 16;
+    private static final int MIN_CAPACITY = 1_024;
+
+    private static final int CLEAN_OFFSET = 12;
+    private static final int CARD_COUNT_OFFSET = 16;
+    private static final int VERSION_SUM_OFFSET = 24;
+
+    private static final int PRESENT_OFFSET = 0;
+    private static final int STATUS_OFFSET = 1;
+    private static final int TYPE_OFFSET = 2;
+    private static final int EXPIRATION_OFFSET = 4;
+    private static final int LIMIT_OFFSET = 8;
+
+    private static CardStateTable instance = null;
+
+    public enum Decision {
+        APPROVED,
+        DECLINED,
+        UNKNOWN
+    }
+
+    private final CardDAO cardDAO;
+    private final Path file;
+    private FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private int capacity = 0;
+
+    private CardStateTable(Path file) {
+        this.cardDAO = new CardDAO();
+        this.file = file;
+    }
+
+    public static synchronized CardStateTable getInstance() {
+        if (instance == null) {
+            instance = new CardStateTable(DEFAULT_FILE);
+        }
+        return instance;
+    }
+
+    public synchronized void load() throws SQLException {
+        if (buffer != null) {
+            return;
+        }
+
+        try {
+            boolean existing = Files.exists(file) && Files.size(file) >= HEADER_SIZE;
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "card-state-close"));
+
+            if (existing) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                if (header.getInt(0) == MAGIC && header.getInt(4) == FORMAT_VERSION && matchesDatabase(header)) {
+                    map(header.getInt(8));
+                    markDirty();
+                    Metrics.increment("cardState.loadedFromFile");
+                    return;
+                }
+                Metrics.increment("cardState.staleFile");
+            }
+
+        } catch (IOException e) {
+            throw new SQLException("Failed to open card state table " + file + ": " + e.getMessage(), e);
+        }
+
+        populateFromDatabase();
+    }
+
+    private boolean matchesDatabase(MappedByteBuffer header) throws SQLException {
+        if (header.getInt(CLEAN_OFFSET) != 1) {
+            return false;
+        }
+        CardDAO.Watermark watermark = cardDAO.findWatermark();
+        return header.getLong(CARD_COUNT_OFFSET) == watermark.cardCount()
+            && header.getLong(VERSION_SUM_OFFSET) == watermark.versionSum();
+    }
+
+    // Cleared while the process runs, so a crash before close leaves the file marked untrusted.
+    private void markDirty() {
+        buffer.putInt(CLEAN_OFFSET, 0);
+        buffer.force();
+    }
+
+    // Records the database watermark the table now reflects. If the database cannot be reached the
+    // file stays marked dirty and the next start rebuilds it.
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            CardDAO.Watermark watermark = cardDAO.findWatermark();
+            buffer.putLong(CARD_COUNT_OFFSET, watermark.cardCount());
+            buffer.putLong(VERSION_SUM_OFFSET, watermark.versionSum());
+            buffer.force();
+            buffer.putInt(CLEAN_OFFSET, 1);
+        } catch (SQLException e) {
+            System.err.println("Card state table left marked dirty, it will be rebuilt on next start: " + e.getMessage());
+        }
+        buffer.force();
+    }
+
+    public synchronized void rebuild() throws SQLException {
+        if (channel == null) {
+            load();
+            return;
+        }
+        populateFromDatabase();
+    }
+
+    private void populateFromDatabase() throws SQLException {
+        try {
+            channel.truncate(0);
+            buffer = null;
+            map(Math.max(MIN_CAPACITY, cardDAO.findMaxCardId() + 1));
+        } catch (IOException e) {
+            throw new SQLException("Failed to reset card state table " + file + ": " + e.getMessage(), e);
+        }
+
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            cardDAO.streamAll(pooled.getConnection(), this::put);
+        }
+        markDirty();
+        Metrics.increment("cardState.rebuiltFromDatabase");
+    }
+
+    public boolean isLoaded() {
+        return buffer != null;
+    }
+
+    // Spent amounts are the card's running totals for the current day and month, in cents.
+    public Decision decide(int cardId, BigDecimal amount, LocalDate today, long spentTodayCents, long spentThisMonthCents) {
+        MappedByteBuffer current = buffer;
+        if (!holds(current, cardId)) {
+            return Decision.UNKNOWN;
+        }
+
+        int offset = recordOffset(cardId);
+        if (current.get(offset + PRESENT_OFFSET) == 0) {
+            return Decision.UNKNOWN;
+        }
+
+        CardStatus status = CardStatus.values()[current.get(offset + STATUS_OFFSET)];
+        CardType cardType = CardType.values()[current.get(offset + TYPE_OFFSET)];
+        LocalDate expiration = LocalDate.ofEpochDay(current.getInt(offset + EXPIRATION_OFFSET));
+        long limitCents = current.getLong(offset + LIMIT_OFFSET);
+
+        if (status != CardStatus.ACTIVE || expiration.isBefore(today)) {
+            return Decision.DECLINED;
+        }
+
+        long alreadySpent = switch (cardType) {
+            case DEBIT -> spentTodayCents;
+            case CREDIT -> spentThisMonthCents;
+            case PREPAID -> 0;
+        };
+        return alreadySpent + MoneyUtils.toCents(amount) <= limitCents ? Decision.APPROVED : Decision.DECLINED;
+    }
+
+    public CardType cardType(int cardId) {
+        MappedByteBuffer current = buffer;
+        if (!holds(current, cardId)) {
+            return null;
+        }
+
+        int offset = recordOffset(cardId);
+        if (current.get(offset + PRESENT_OFFSET) == 0) {
+            return null;
+        }
+        return CardType.values()[current.get(offset + TYPE_OFFSET)];
+    }
+
+    public CardStatus cardStatus(int cardId) {
+        MappedByteBuffer current = buffer;
+        if (!holds(current, cardId)) {
+            return null;
+        }
+
+        int offset = recordOffset(cardId);
+        if (current.get(offset + PRESENT_OFFSET) == 0) {
+            return null;
+        }
+        return CardStatus.values()[current.get(offset + STATUS_OFFSET)];
+    }
+
+    public synchronized void put(Card card) {
+        if (buffer == null) {
+            return;
+        }
+
+        int cardId = card.getCardId();
+        if (cardId >= capacity) {
+            map(Math.max(cardId + 1, capacity * 2));
+        }
+
+        int offset = recordOffset(cardId);
+        buffer.put(offset + PRESENT_OFFSET, (byte) 0);
+        buffer.put(offset + STATUS_OFFSET, (byte) card.getCardStatus().ordinal());
+        buffer.put(offset + TYPE_OFFSET, (byte) card.getCardType().ordinal());
+        buffer.putInt(offset + EXPIRATION_OFFSET, (int) card.getExpirationDate().toEpochDay());
+        buffer.putLong(offset + LIMIT_OFFSET, MoneyUtils.toCents(limitOf(card)));
+        buffer.put(offset + PRESENT_OFFSET, (byte) 1);
+    }
+
+    // A suspend never overwrites a block, so a late suspend cannot make a blocked card look weaker.
+    public synchronized void updateStatus(int cardId, CardStatus status) {
+        if (holds(buffer, cardId) && buffer.get(recordOffset(cardId) + PRESENT_OFFSET) != 0) {
+            int offset = recordOffset(cardId) + STATUS_OFFSET;
+            if (status == CardStatus.SUSPENDED && buffer.get(offset) == (byte) CardStatus.BLOCKED.ordinal()) {
+                return;
+            }
+            buffer.put(offset, (byte) status.ordinal());
+        }
+    }
+
+    public synchronized void updateLimit(int cardId, BigDecimal limit) {
+        if (holds(buffer, cardId) && buffer.get(recordOffset(cardId) + PRESENT_OFFSET) != 0) {
+            buffer.putLong(recordOffset(cardId) + LIMIT_OFFSET, MoneyUtils.toCents(limit));
+        }
+    }
+
+    public synchronized void remove(int cardId) {
+        if (holds(buffer, cardId)) {
+            buffer.put(recordOffset(cardId) + PRESENT_OFFSET, (byte) 0);
+        }
+    }
+
+    public synchronized void flush() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    private void map(int newCapacity) {
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, FORMAT_VERSION);
+            mapped.putInt(8, newCapacity);
+            buffer = mapped;
+            capacity = newCapacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map card state table " + file, e);
+        }
+    }
+
+    private static boolean holds(MappedByteBuffer current, int cardId) {
+        return current != null && cardId >= 0 && cardId < (current.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    private static int recordOffset(int cardId) {
+        return HEADER_SIZE + cardId * RECORD_SIZE;
+    }
+
+    private static BigDecimal limitOf(Card card) {
+        BigDecimal limit;
+        if (card instanceof DebitCard) {
+            limit = ((DebitCard) card).getDailyLimit();
+        } else if (card instanceof CreditCard) {
+            limit = ((CreditCard) card).getMonthlyLimit();
+        } else {
+            limit = ((PrepaidCard) card).getAvailableBalance();
+        }
+        return limit == null ? BigDecimal.ZERO : limit;
+    }
+}
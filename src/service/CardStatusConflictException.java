@@ -0,0 +1,11 @@
+package service;
+
+// The requested status change does not apply to the card as it is now, for example activating a
+// card that is already active.
+public class CardStatusConflictException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public CardStatusConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,124 @@
+package service;
+
+import dao.CardDAO;
+import entity.enums.CardStatus;
+import util.CardIdBitmap;
+import util.Metrics;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory set of card ids that are not ACTIVE, so authorizations on blocked or suspended cards
+// can be refused without reading the card row.
+public class CardStatusRegistry {
+    private static CardStatusRegistry instance = null;
+
+    private final CardDAO cardDAO;
+    private final CardIdBitmap inactiveCards;
+    private final ReadWriteLock lock;
+    private Map<Integer, CardStatus> changedDuringLoad = null;
+    private volatile boolean loaded = false;
+
+    private CardStatusRegistry() {
+        this.cardDAO = new CardDAO();
+        this.inactiveCards = new CardIdBitmap();
+        this.lock = new ReentrantReadWriteLock();
+        Metrics.registerGauge("cardStatus.inactiveCards", this::inactiveCount);
+    }
+
+    public static synchronized CardStatusRegistry getInstance() {
+        if (instance == null) {
+            instance = new CardStatusRegistry();
+        }
+        return instance;
+    }
+
+    // The query runs without the lock, so statuses recorded while it runs are kept aside and
+    // applied over its result; they are at least as new as anything it read.
+    public synchronized void load() throws SQLException {
+        lock.writeLock().lock();
+        try {
+            changedDuringLoad = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        List<Integer> cardIds = null;
+        try {
+            cardIds = cardDAO.findCardIdsByCardStatus(CardStatus.SUSPENDED, CardStatus.BLOCKED);
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (cardIds != null) {
+                    inactiveCards.clear();
+                    for (int cardId : cardIds) {
+                        inactiveCards.add(cardId);
+                    }
+                    changedDuringLoad.forEach(this::apply);
+                    loaded = true;
+                }
+                changedDuringLoad = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public boolean isInactive(int cardId) throws SQLException {
+        ensureLoaded();
+
+        lock.readLock().lock();
+        try {
+            return inactiveCards.contains(cardId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void recordStatus(int cardId, CardStatus status) {
+        lock.writeLock().lock();
+        try {
+            apply(cardId, status);
+            if (changedDuringLoad != null) {
+                changedDuringLoad.put(cardId, status);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void apply(int cardId, CardStatus status) {
+        if (status == CardStatus.ACTIVE) {
+            inactiveCards.remove(cardId);
+        } else {
+            inactiveCards.add(cardId);
+        }
+    }
+
+    public void forget(int cardId) {
+        recordStatus(cardId, CardStatus.ACTIVE);
+    }
+
+    private long inactiveCount() {
+        lock.readLock().lock();
+        try {
+            return inactiveCards.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    load();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package service;
+
+import util.CsvUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class CsvExportSink implements ExportSink {
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final BufferedWriter writer;
+
+    public CsvExportSink(OutputStream out, boolean gzip) throws IOException {
+        OutputStream target = gzip ? new GZIPOutputStream(out, BUFFER_BYTES) : out;
+        this.writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), BUFFER_BYTES);
+    }
+
+    @Override
+    public void writeRow(List<?> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Object value = values.get(i);
+            if (value instanceof BigDecimal) {
+                writer.write(((BigDecimal) value).toPlainString());
+            } else if (value != null) {
+                writer.write(CsvUtils.escape(value.toString()));
+            }
+        }
+        writer.newLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
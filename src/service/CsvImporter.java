@@ -0,0 +1,221 @@
+package service;
+
+import dao.ImportCheckpointDAO;
+import util.CsvUtils;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Reads a CSV file in fixed-size chunks cut at line ends, parses chunks in parallel and writes
+// them in file order, one transaction per chunk. The transaction also stores the byte offset
+// after the chunk, so an import that fails part-way resumes from the last committed chunk.
+// Invalid rows go to <file>.rejected with their byte offset and the reason.
+public class CsvImporter<T> {
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final int PARSER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final int MAX_CHUNKS_IN_FLIGHT = PARSER_THREADS * 2;
+
+    private final ImportRowMapper<T> rowMapper;
+    private final ImportBatchWriter<T> batchWriter;
+    private final ImportCheckpointDAO checkpointDAO;
+
+    public CsvImporter(ImportRowMapper<T> rowMapper, ImportBatchWriter<T> batchWriter) {
+        this.rowMapper = rowMapper;
+        this.batchWriter = batchWriter;
+        this.checkpointDAO = new ImportCheckpointDAO();
+    }
+
+    private record ParsedChunk<T>(long endOffset, long rowsRead, List<T> rows, List<String> lines,
+                                  List<Long> lineOffsets, List<String> rejections) {
+    }
+
+    public ImportReport run(Path file) throws SQLException, IOException {
+        long start = System.nanoTime();
+        String checkpointKey = file.toAbsolutePath().normalize().toString();
+        Path rejectedFile = file.resolveSibling(file.getFileName() + ".rejected");
+        ExecutorService parsers = Executors.newFixedThreadPool(PARSER_THREADS);
+        Deque<Future<ParsedChunk<T>>> inFlight = new ArrayDeque<>();
+
+        long resumedFrom;
+        long rowsRead = 0;
+        long rowsImported = 0;
+        long rowsRejected = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             PooledConnection pooled = DatabaseConnection.acquirePooledConnection();
+             BufferedWriter rejectedOut = Files.newBufferedWriter(rejectedFile, StandardCharsets.UTF_8,
+                 StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            Connection conn = pooled.getConnection();
+            long offset = checkpointDAO.findOffset(conn, checkpointKey).orElse(0L);
+            if (offset > channel.size()) {
+                offset = 0;
+            }
+            resumedFrom = offset;
+            channel.position(offset);
+            conn.setAutoCommit(false);
+
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+            boolean skipHeader = offset == 0;
+            boolean endOfFile = false;
+
+            while (!endOfFile || !inFlight.isEmpty()) {
+                while (!endOfFile && inFlight.size() < MAX_CHUNKS_IN_FLIGHT) {
+                    byte[] chunk = nextChunk(channel, buffer);
+                    if (chunk == null) {
+                        endOfFile = true;
+                        break;
+                    }
+                    long chunkOffset = offset;
+                    boolean skipFirstLine = skipHeader;
+                    inFlight.addLast(parsers.submit(() -> parse(chunk, chunkOffset, skipFirstLine)));
+                    offset += chunk.length;
+                    skipHeader = false;
+                }
+                if (inFlight.isEmpty()) {
+                    break;
+                }
+
+                ParsedChunk<T> parsed = await(inFlight.removeFirst());
+                Map<Integer, String> rejectedRows = batchWriter.write(conn, parsed.rows());
+                checkpointDAO.save(conn, checkpointKey, parsed.endOffset());
+                conn.commit();
+
+                List<T> inserted = new ArrayList<>(parsed.rows().size() - rejectedRows.size());
+                for (int i = 0; i < parsed.rows().size(); i++) {
+                    String reason = rejectedRows.get(i);
+                    if (reason == null) {
+                        inserted.add(parsed.rows().get(i));
+                    } else {
+                        rejectedOut.write(rejection(parsed.lineOffsets().get(i), reason, parsed.lines().get(i)));
+                    }
+                }
+                for (String rejection : parsed.rejections()) {
+                    rejectedOut.write(rejection);
+                }
+                rejectedOut.flush();
+                batchWriter.committed(inserted);
+
+                rowsRead += parsed.rowsRead();
+                rowsImported += inserted.size();
+                rowsRejected += parsed.rowsRead() - inserted.size();
+                Metrics.add("import.rowsImported", inserted.size());
+            }
+
+            checkpointDAO.delete(conn, checkpointKey);
+            conn.commit();
+        } finally {
+            inFlight.forEach(future -> future.cancel(true));
+            parsers.shutdownNow();
+        }
+
+        if (rowsRejected == 0 && Files.size(rejectedFile) == 0) {
+            Files.delete(rejectedFile);
+        }
+        return new ImportReport(file.toString(), resumedFrom, rowsRead, rowsImported, rowsRejected,
+            Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    // The next run of whole lines from the channel, or null at end of file. A partial last line
+    // stays in the buffer for the next call.
+    private static byte[] nextChunk(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        boolean endOfFile = buffer.hasRemaining();
+        buffer.flip();
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            return null;
+        }
+
+        int end = buffer.limit();
+        if (!endOfFile) {
+            while (end > 0 && buffer.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                throw new IOException("Line longer than " + CHUNK_BYTES + " bytes at offset " + channel.position());
+            }
+        }
+
+        byte[] chunk = new byte[end];
+        buffer.get(chunk);
+        buffer.compact();
+        return chunk;
+    }
+
+    private ParsedChunk<T> parse(byte[] chunk, long chunkOffset, boolean skipFirstLine) {
+        List<T> rows = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        List<Long> lineOffsets = new ArrayList<>();
+        List<String> rejections = new ArrayList<>();
+        long rowsRead = 0;
+
+        int lineStart = 0;
+        boolean skip = skipFirstLine;
+        while (lineStart < chunk.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < chunk.length && chunk[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd > lineStart && chunk[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            String line = new String(chunk, lineStart, contentEnd - lineStart, StandardCharsets.UTF_8);
+            long lineOffset = chunkOffset + lineStart;
+            lineStart = lineEnd + 1;
+
+            if (skip) {
+                skip = false;
+                continue;
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+
+            rowsRead++;
+            try {
+                rows.add(rowMapper.map(CsvUtils.parseLine(line)));
+                lines.add(line);
+                lineOffsets.add(lineOffset);
+            } catch (IllegalArgumentException | DateTimeException e) {
+                rejections.add(rejection(lineOffset, e.getMessage(), line));
+            }
+        }
+        return new ParsedChunk<>(chunkOffset + chunk.length, rowsRead, rows, lines, lineOffsets, rejections);
+    }
+
+    private static String rejection(long lineOffset, String reason, String line) {
+        return lineOffset + "," + CsvUtils.escape(reason) + "," + line + System.lineSeparator();
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse import file: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
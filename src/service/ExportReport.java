@@ -0,0 +1,14 @@
+package service;
+
+import java.time.Duration;
+
+public record ExportReport(
+    String filePath,
+    long rowsExported,
+    Duration elapsed
+) {
+    public double rowsPerSecond() {
+        double seconds = elapsed.toNanos() / 1_000_000_000.0;
+        return seconds == 0 ? rowsExported : rowsExported / seconds;
+    }
+}
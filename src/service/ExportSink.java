@@ -0,0 +1,31 @@
+package service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Row-at-a-time output for exports. The format follows the file name: .xlsx, .csv or .csv.gz.
+public interface ExportSink extends Closeable {
+
+    void writeRow(List<?> values) throws IOException;
+
+    static ExportSink open(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase();
+        OutputStream out = Channels.newOutputStream(FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+
+        if (name.endsWith(".xlsx")) {
+            return new XlsxExportSink(out);
+        }
+        if (name.endsWith(".csv") || name.endsWith(".csv.gz")) {
+            return new CsvExportSink(out, name.endsWith(".gz"));
+        }
+        out.close();
+        throw new IllegalArgumentException("Export file must end in .xlsx, .csv or .csv.gz");
+    }
+}
@@ -0,0 +1,17 @@
+package service;
+
+import entity.CardOperation;
+import entity.enums.AlertLevel;
+import entity.enums.FraudRule;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+public record FraudFinding(
+    FraudRule rule,
+    AlertLevel alertLevel,
+    int cardId,
+    List<CardOperation> operations,
+    BigDecimal measuredValue,
+    BigDecimal threshold
+) {}
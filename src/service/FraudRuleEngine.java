@@ -0,0 +1,112 @@
+package service;
+
+import entity.CardOperation;
+import entity.enums.AlertLevel;
+import entity.enums.FraudRule;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FraudRuleEngine {
+    public static final BigDecimal SUSPICIOUS_AMOUNT = new BigDecimal("5000");
+    public static final long SUSPICIOUS_OPERATION_MINUTES = 30;
+    public static final int MULTIPLE_ATTEMPTS_COUNT = 5;
+    public static final long MULTIPLE_ATTEMPTS_MINUTES = 60;
+
+    private final BigDecimal suspiciousAmount;
+    private final long suspiciousOperationMinutes;
+    private final int multipleAttemptsCount;
+    private final long multipleAttemptsMinutes;
+
+    public FraudRuleEngine() {
+        this(SUSPICIOUS_AMOUNT, SUSPICIOUS_OPERATION_MINUTES, MULTIPLE_ATTEMPTS_COUNT, MULTIPLE_ATTEMPTS_MINUTES);
+    }
+
+    public FraudRuleEngine(BigDecimal suspiciousAmount, long suspiciousOperationMinutes,
+                           int multipleAttemptsCount, long multipleAttemptsMinutes) {
+        if (multipleAttemptsCount < 2) {
+            throw new IllegalArgumentException("Multiple attempts rule needs at least 2 operations");
+        }
+        this.suspiciousAmount = suspiciousAmount;
+        this.suspiciousOperationMinutes = suspiciousOperationMinutes;
+        this.multipleAttemptsCount = multipleAttemptsCount;
+        this.multipleAttemptsMinutes = multipleAttemptsMinutes;
+    }
+
+    // Operations must belong to a single card and be ordered by date, most recent first.
+    public List<FraudFinding> evaluate(List<CardOperation> operations) {
+        List<FraudFinding> findings = new ArrayList<>();
+        if (operations.isEmpty()) {
+            return findings;
+        }
+
+        detectHighAmountTransactions(operations, findings);
+        detectRapidTransactions(operations, findings);
+        detectMultipleAttempts(operations, findings);
+        return findings;
+    }
+
+    private void detectHighAmountTransactions(List<CardOperation> operations, List<FraudFinding> findings) {
+        for (CardOperation op : operations) {
+            if (op.getAmount().compareTo(suspiciousAmount) > 0) {
+                findings.add(new FraudFinding(
+                    FraudRule.HIGH_AMOUNT,
+                    AlertLevel.WARNING,
+                    op.getCardId(),
+                    List.of(op),
+                    op.getAmount(),
+                    suspiciousAmount
+                ));
+            }
+        }
+    }
+
+    private void detectRapidTransactions(List<CardOperation> operations, List<FraudFinding> findings) {
+        for (int i = 0; i < operations.size() - 1; i++) {
+            CardOperation op1 = operations.get(i);
+            CardOperation op2 = operations.get(i + 1);
+
+            Duration duration = Duration.between(op2.getOperationDate(), op1.getOperationDate());
+            long minutesDiff = Math.abs(duration.toMinutes());
+
+            if (minutesDiff <= suspiciousOperationMinutes && !op1.getLocation().equals(op2.getLocation())) {
+                findings.add(new FraudFinding(
+                    FraudRule.RAPID_LOCATION_CHANGE,
+                    AlertLevel.CRITICAL,
+                    op1.getCardId(),
+                    List.of(op1, op2),
+                    BigDecimal.valueOf(minutesDiff),
+                    BigDecimal.valueOf(suspiciousOperationMinutes)
+                ));
+            }
+        }
+    }
+
+    private void detectMultipleAttempts(List<CardOperation> operations, List<FraudFinding> findings) {
+        int span = multipleAttemptsCount - 1;
+        if (operations.size() < multipleAttemptsCount) {
+            return;
+        }
+
+        for (int i = 0; i < operations.size() - span; i++) {
+            CardOperation first = operations.get(i);
+            CardOperation last = operations.get(i + span);
+
+            Duration duration = Duration.between(last.getOperationDate(), first.getOperationDate());
+            long minutesDiff = Math.abs(duration.toMinutes());
+
+            if (minutesDiff <= multipleAttemptsMinutes) {
+                findings.add(new FraudFinding(
+                    FraudRule.MULTIPLE_ATTEMPTS,
+                    AlertLevel.CRITICAL,
+                    first.getCardId(),
+                    List.copyOf(operations.subList(i, i + multipleAttemptsCount)),
+                    BigDecimal.valueOf(minutesDiff),
+                    BigDecimal.valueOf(multipleAttemptsMinutes)
+                ));
+            }
+        }
+    }
+}
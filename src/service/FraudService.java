@@ -5,25 +5,25 @@ import dao.FraudAlertDAO;
 import entity.FraudAlert;
 import entity.CardOperation;
 import entity.enums.AlertLevel;
+import entity.enums.FraudRule;
 
-import java.math.BigDecimal;
 import java.sql.SQLException;
-import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class FraudService {
     private final CardOperationDAO operationDAO;
     private final FraudAlertDAO alertDAO;
     private final CardService cardService;
-
-    private static final BigDecimal SUSPICIOUS_AMOUNT = new BigDecimal("5000");
-    private static final long SUSPICIOUS_OPERATION_MINUTES = 30;
+    private final FraudRuleEngine ruleEngine;
 
     public FraudService() {
         this.operationDAO = new CardOperationDAO();
         this.alertDAO = new FraudAlertDAO();
         this.cardService = new CardService();
+        this.ruleEngine = new FraudRuleEngine();
     }
 
     public void detectFraud(int cardId) throws SQLException {
@@ -33,69 +33,60 @@ public class FraudService {
             return;
         }
 
-        detectHighAmountTransactions(operations);
-        detectRapidTransactions(operations);
-        detectMultipleAttempts(operations);
-    }
-
-    private void detectHighAmountTransactions(List<CardOperation> operations) throws SQLException {
-        for (CardOperation op : operations) {
-            if (op.getAmount().compareTo(SUSPICIOUS_AMOUNT) > 0) {
-                String description = String.format(
-                    "High amount detected: %.2f EUR at %s on %s",
-                    op.getAmount(),
-                    op.getLocation(),
-                    op.getOperationDate()
-                );
-                createAlert(op.getCardId(), description, AlertLevel.WARNING);
+        // A block from an earlier finding in this pass must not be softened by a later suspend.
+        boolean blocked = false;
+        Set<String> alreadyRaised = null;
+        for (FraudFinding finding : ruleEngine.evaluate(operations)) {
+            if (alreadyRaised == null) {
+                alreadyRaised = alertDAO.findRuleKeysByCardId(cardId);
             }
-        }
-    }
 
-    private void detectRapidTransactions(List<CardOperation> operations) throws SQLException {
-        for (int i = 0; i < operations.size() - 1; i++) {
-            CardOperation op1 = operations.get(i);
-            CardOperation op2 = operations.get(i + 1);
-
-            Duration duration = Duration.between(op2.getOperationDate(), op1.getOperationDate());
-            long minutesDiff = Math.abs(duration.toMinutes());
-
-            if (minutesDiff <= SUSPICIOUS_OPERATION_MINUTES && !op1.getLocation().equals(op2.getLocation())) {
-                String description = String.format(
-                    "Suspicious operations: %s at %s and %s at %s within %d minutes",
-                    op1.getLocation(),
-                    op1.getOperationDate(),
-                    op2.getLocation(),
-                    op2.getOperationDate(),
-                    minutesDiff
-                );
-                createAlert(op1.getCardId(), description, AlertLevel.CRITICAL);
-                cardService.blockCard(op1.getCardId());
+            FraudAlert alert = toAlert(finding);
+            if (!alreadyRaised.add(FraudAlertDAO.ruleKey(alert.ruleCode(), alert.operationIds()))) {
+                continue;
+            }
+            alertDAO.save(alert);
+
+            switch (finding.rule()) {
+                case RAPID_LOCATION_CHANGE -> {
+                    cardService.blockCard(finding.cardId());
+                    blocked = true;
+                }
+                case MULTIPLE_ATTEMPTS -> {
+                    if (!blocked) {
+                        suspendUnlessBlocked(finding.cardId());
+                    }
+                }
+                default -> {
+                }
             }
         }
     }
 
-    private void detectMultipleAttempts(List<CardOperation> operations) throws SQLException {
-        if (operations.size() < 5) {
-            return;
+    private void suspendUnlessBlocked(int cardId) throws SQLException {
+        try {
+            cardService.suspendCard(cardId);
+        } catch (CardStatusConflictException e) {
+            // Already blocked, which is the stronger action.
         }
+    }
 
-        for (int i = 0; i < operations.size() - 4; i++) {
-            CardOperation first = operations.get(i);
-            CardOperation fifth = operations.get(i + 4);
-
-            Duration duration = Duration.between(fifth.getOperationDate(), first.getOperationDate());
-            long minutesDiff = Math.abs(duration.toMinutes());
+    private FraudAlert toAlert(FraudFinding finding) {
+        List<Integer> operationIds = finding.operations().stream()
+            .map(CardOperation::getOperationId)
+            .toList();
 
-            if (minutesDiff <= 60) {
-                String description = String.format(
-                    "Multiple attempts detected: 5+ operations in %d minutes",
-                    minutesDiff
-                );
-                createAlert(first.getCardId(), description, AlertLevel.CRITICAL);
-                cardService.suspendCard(first.getCardId());
-            }
-        }
+        return new FraudAlert(
+            0,
+            null,
+            finding.alertLevel(),
+            finding.cardId(),
+            LocalDateTime.now(),
+            finding.rule(),
+            operationIds,
+            finding.measuredValue(),
+            finding.threshold()
+        );
     }
 
     public FraudAlert createAlert(int cardId, String description, AlertLevel level) throws SQLException {
@@ -125,6 +116,14 @@ public class FraudService {
         return alertDAO.findByLevel(level);
     }
 
+    public List<FraudAlert> getAlertsByRule(FraudRule rule) throws SQLException {
+        return alertDAO.findByRuleCode(rule);
+    }
+
+    public Map<FraudRule, Long> countAlertsByRule(LocalDateTime since) throws SQLException {
+        return alertDAO.countByRuleCode(since);
+    }
+
     public boolean deleteAlert(int id) throws SQLException {
         return alertDAO.delete(id);
     }
@@ -0,0 +1,187 @@
+package service;
+
+import dao.CardOperationDAO;
+import util.BloomFilter;
+import util.Metrics;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+
+// Idempotency keys seen within the last window. A bloom filter answers "never seen" without a
+// lookup; only keys it may have seen are checked against the recent-key map and, failing that,
+// the database. The unique index on CardOperation.idempotencyKey still rejects anything older.
+//
+// The filter has two generations that swap every window, so a key stays in it for at least
+// one full window. The map is bounded and drops its oldest keys first, except pending ones: a key
+// whose operation is in flight or still in the journal is not in the table yet, so nothing else
+// would catch a retry of it.
+public class IdempotencyCache {
+    private static final Duration DEFAULT_WINDOW = Duration.ofHours(24);
+    private static final int MAX_ENTRIES = 200_000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MAX_KEY_LENGTH = 64;
+
+    private static IdempotencyCache instance = null;
+
+    private final CardOperationDAO operationDAO;
+    private final long windowNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private BloomFilter current;
+    private BloomFilter previous;
+    private long rotatedAt;
+
+    // operationId is 0 while the operation is in flight or waiting in the journal, and stays 0 for
+    // journaled operations once stored. pending is true until the row is in CardOperation.
+    private record Entry(int operationId, long addedAt, boolean pending) {
+    }
+
+    private IdempotencyCache(Duration window) {
+        this.operationDAO = new CardOperationDAO();
+        this.windowNanos = window.toNanos();
+        this.entries = new LinkedHashMap<>();
+        this.current = newFilter();
+        this.previous = newFilter();
+        this.rotatedAt = System.nanoTime();
+    }
+
+    public static synchronized IdempotencyCache getInstance() {
+        if (instance == null) {
+            instance = new IdempotencyCache(DEFAULT_WINDOW);
+        }
+        return instance;
+    }
+
+    // Seeds the cache with keys on operations dated within the window.
+    public void load() throws SQLException {
+        long now = System.nanoTime();
+        operationDAO.streamIdempotencyKeysSince(LocalDateTime.now().minus(Duration.ofNanos(windowNanos)), (key, operationId) -> {
+            synchronized (this) {
+                remember(key, new Entry(operationId, now, false));
+            }
+        });
+    }
+
+    public static void validate(String idempotencyKey) {
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Idempotency key must be 1 to " + MAX_KEY_LENGTH + " characters");
+        }
+    }
+
+    // Claims the key for a new operation. Returns the id of the operation that already holds it
+    // (0 if that one is still in flight), or empty if the caller may go ahead; the caller must
+    // then call complete or release.
+    public Optional<Integer> reserve(String idempotencyKey) throws SQLException {
+        long hash = hash(idempotencyKey);
+        boolean maybeSeen;
+        synchronized (this) {
+            expire(System.nanoTime());
+            Entry entry = entries.get(idempotencyKey);
+            if (entry != null) {
+                Metrics.increment("idempotency.hit.memory");
+                return Optional.of(entry.operationId());
+            }
+            maybeSeen = current.mightContain(hash) || previous.mightContain(hash);
+        }
+
+        if (maybeSeen) {
+            Optional<Integer> stored = operationDAO.findIdByIdempotencyKey(idempotencyKey);
+            if (stored.isPresent()) {
+                Metrics.increment("idempotency.hit.database");
+                synchronized (this) {
+                    remember(idempotencyKey, new Entry(stored.get(), System.nanoTime(), false));
+                }
+                return stored;
+            }
+            Metrics.increment("idempotency.bloom.falsePositive");
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(idempotencyKey);
+            if (entry != null) {
+                return Optional.of(entry.operationId());
+            }
+            remember(idempotencyKey, new Entry(0, System.nanoTime(), true));
+        }
+        return Optional.empty();
+    }
+
+    // operationId is 0 for an operation accepted into the journal; its key stays pending until
+    // stored is called, which may happen first if the drain is quick.
+    public synchronized void complete(String idempotencyKey, int operationId) {
+        Entry entry = entries.get(idempotencyKey);
+        if (entry != null) {
+            entries.put(idempotencyKey, new Entry(operationId, entry.addedAt(), operationId == 0 && entry.pending()));
+        }
+    }
+
+    // The journal has written the operation holding this key to CardOperation, so the unique
+    // index now backs it and the entry may be evicted.
+    public synchronized void stored(String idempotencyKey) {
+        Entry entry = entries.get(idempotencyKey);
+        if (entry != null && entry.pending()) {
+            entries.put(idempotencyKey, new Entry(entry.operationId(), entry.addedAt(), false));
+        }
+    }
+
+    // The operation was not recorded, so the key may be used again. Its filter bit stays set,
+    // which only costs one database lookup on the retry.
+    public synchronized void release(String idempotencyKey) {
+        entries.remove(idempotencyKey);
+    }
+
+    private void remember(String idempotencyKey, Entry entry) {
+        entries.put(idempotencyKey, entry);
+        current.add(hash(idempotencyKey));
+        if (entries.size() > MAX_ENTRIES) {
+            Iterator<Entry> oldest = entries.values().iterator();
+            while (oldest.hasNext()) {
+                if (!oldest.next().pending()) {
+                    oldest.remove();
+                    Metrics.increment("idempotency.evicted");
+                    return;
+                }
+            }
+        }
+    }
+
+    private void expire(long now) {
+        if (now - rotatedAt >= windowNanos) {
+            previous = current;
+            current = newFilter();
+            rotatedAt = now;
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.addedAt() < windowNanos) {
+                break;
+            }
+            if (!entry.pending()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static BloomFilter newFilter() {
+        return new BloomFilter(MAX_ENTRIES, FALSE_POSITIVE_RATE);
+    }
+
+    // The filter expects well-mixed 64-bit keys: a polynomial string hash through the
+    // MurmurHash3 finalizer.
+    private static long hash(String idempotencyKey) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < idempotencyKey.length(); i++) {
+            hash = 31 * hash + idempotencyKey.charAt(i);
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,17 @@
+package service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+public interface ImportBatchWriter<T> {
+
+    // Inserts the rows that pass validation in the caller's transaction and returns the reason
+    // for each rejected row, keyed by its index in rows.
+    Map<Integer, String> write(Connection conn, List<T> rows) throws SQLException;
+
+    // Called with the inserted rows once their transaction has committed.
+    default void committed(List<T> rows) {
+    }
+}
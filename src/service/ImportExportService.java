@@ -1,43 +1,318 @@
 package service;
 
-import java.io.File;
-import java.io.FileInputStream;
+import dao.CardDAO;
+import dao.CardOperationDAO;
+import dao.CustomerDAO;
+import entity.*;
+import entity.enums.CardStatus;
+import entity.enums.CardType;
+import entity.enums.OperationType;
+import util.CardNumberGenerator;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+import util.PanHasher;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
 
 public class ImportExportService {
+    private static final int CARD_BATCH_SIZE = 1_000;
+    private static final int EXPORT_PROGRESS_ROWS = 100_000;
+
     private final OperationService operationService;
     private final CardService cardService;
+    private final CardDAO cardDAO;
+    private final CardOperationDAO operationDAO;
+    private final CustomerDAO customerDAO;
+    private final SpendTracker spendTracker;
+    private final CardStateTable stateTable;
+    private final CardNumberIndex cardNumberIndex;
+    private final CardStatusRegistry statusRegistry;
 
     public ImportExportService() {
         this.operationService = new OperationService();
         this.cardService = new CardService();
+        this.cardDAO = new CardDAO();
+        this.operationDAO = new CardOperationDAO();
+        this.customerDAO = new CustomerDAO();
+        this.spendTracker = SpendTracker.getInstance();
+        this.stateTable = CardStateTable.getInstance();
+        this.cardNumberIndex = CardNumberIndex.getInstance();
+        this.statusRegistry = CardStatusRegistry.getInstance();
+    }
+
+    // Same columns as the CSV import, read from the first sheet; the first row is the header.
+    public ImportReport importOperationsFromExcel(String filePath) throws SQLException, IOException {
+        if (isCsv(filePath)) {
+            return importOperationsFromCsv(filePath);
+        }
+        return new XlsxImporter<>(this::mapOperationRow, operationWriter()).run(Path.of(filePath));
+    }
+
+    public ImportReport importCardsFromExcel(String filePath) throws SQLException, IOException {
+        if (isCsv(filePath)) {
+            return importCardsFromCsv(filePath);
+        }
+        return new XlsxImporter<>(this::mapCardRow, cardWriter()).run(Path.of(filePath));
+    }
+
+    // Columns: operationDate (yyyy-MM-ddTHH:mm:ss), amount, operationType, location, cardId and an
+    // optional idempotencyKey; rows whose key is already used are rejected, so re-running a file
+    // with keys does not duplicate it. Rows are stored as recorded by the acquirer; limits and fraud rules are not re-applied.
+    public ImportReport importOperationsFromCsv(String filePath) throws SQLException, IOException {
+        return new CsvImporter<>(this::mapOperationRow, operationWriter()).run(Path.of(filePath));
+    }
+
+    // Columns: cardNumber (blank to issue a new one), cardType, customerId, expirationDate,
+    // cardStatus (blank for ACTIVE), dailyLimit, monthlyLimit, interestRate, availableBalance.
+    public ImportReport importCardsFromCsv(String filePath) throws SQLException, IOException {
+        return new CsvImporter<>(this::mapCardRow, cardWriter()).run(Path.of(filePath));
+    }
+
+    private ImportBatchWriter<CardOperation> operationWriter() {
+        return new ImportBatchWriter<>() {
+            @Override
+            public Map<Integer, String> write(Connection conn, List<CardOperation> rows) throws SQLException {
+                return writeOperations(conn, rows);
+            }
+
+            @Override
+            public void committed(List<CardOperation> rows) {
+                rows.forEach(operation -> spendTracker.record(operation.cardId(), operation.operationDate(), operation.amount()));
+            }
+        };
+    }
+
+    private ImportBatchWriter<Card> cardWriter() {
+        return new ImportBatchWriter<>() {
+            @Override
+            public Map<Integer, String> write(Connection conn, List<Card> rows) throws SQLException {
+                return writeCards(conn, rows);
+            }
+
+            @Override
+            public void committed(List<Card> rows) {
+                for (Card card : rows) {
+                    stateTable.put(card);
+                    cardNumberIndex.add(card.getCardNumber(), card.getCardId());
+                    statusRegistry.recordStatus(card.getCardId(), card.getStatus());
+                }
+            }
+        };
+    }
+
+    private CardOperation mapOperationRow(String[] fields) {
+        requireColumns(fields, 5);
+        BigDecimal amount = new BigDecimal(fields[1]);
+        if (amount.signum() <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+        String idempotencyKey = fields.length > 5 && !fields[5].isEmpty() ? fields[5] : null;
+        if (idempotencyKey != null) {
+            IdempotencyCache.validate(idempotencyKey);
+        }
+        return new CardOperation(0, LocalDateTime.parse(fields[0]), amount,
+            OperationType.valueOf(fields[2].toUpperCase()), fields[3], Integer.parseInt(fields[4]), idempotencyKey);
+    }
+
+    private Card mapCardRow(String[] fields) {
+        requireColumns(fields, 9);
+        String cardNumber = fields[0].isEmpty() ? null : fields[0];
+        if (cardNumber != null && !CardNumberGenerator.isLuhnValid(cardNumber)) {
+            throw new IllegalArgumentException("Card number fails the Luhn check");
+        }
+        CardType cardType = CardType.valueOf(fields[1].toUpperCase());
+        int customerId = Integer.parseInt(fields[2]);
+        LocalDate expirationDate = LocalDate.parse(fields[3]);
+        CardStatus cardStatus = fields[4].isEmpty() ? CardStatus.ACTIVE : CardStatus.valueOf(fields[4].toUpperCase());
+
+        return switch (cardType) {
+            case DEBIT -> new DebitCard(0, cardNumber, expirationDate, cardStatus, customerId, requireAmount(fields[5], "dailyLimit"));
+            case CREDIT -> new CreditCard(0, cardNumber, expirationDate, cardStatus, customerId,
+                requireAmount(fields[6], "monthlyLimit"), requireAmount(fields[7], "interestRate"));
+            case PREPAID -> new PrepaidCard(0, cardNumber, expirationDate, cardStatus, customerId, requireAmount(fields[8], "availableBalance"));
+        };
+    }
+
+    private Map<Integer, String> writeOperations(Connection conn, List<CardOperation> rows) throws SQLException {
+        Set<Integer> cardIds = new HashSet<>();
+        Set<String> idempotencyKeys = new HashSet<>();
+        for (CardOperation operation : rows) {
+            cardIds.add(operation.cardId());
+            if (operation.idempotencyKey() != null) {
+                idempotencyKeys.add(operation.idempotencyKey());
+            }
+        }
+        Set<Integer> knownCardIds = cardDAO.findExistingCardIds(cardIds);
+        Set<String> usedKeys = operationDAO.findExistingIdempotencyKeys(idempotencyKeys);
+
+        Map<Integer, String> rejected = new HashMap<>();
+        List<CardOperation> accepted = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            CardOperation operation = rows.get(i);
+            if (!knownCardIds.contains(operation.cardId())) {
+                rejected.put(i, "Card not found");
+            } else if (operation.idempotencyKey() != null && !usedKeys.add(operation.idempotencyKey())) {
+                rejected.put(i, "Idempotency key already used");
+            } else {
+                accepted.add(operation);
+            }
+        }
+        operationDAO.insertAll(conn, accepted);
+        return rejected;
+    }
+
+    private Map<Integer, String> writeCards(Connection conn, List<Card> rows) throws SQLException {
+        Set<Integer> customerIds = new HashSet<>();
+        Map<String, Integer> rowsByHash = new HashMap<>();
+        Map<Integer, String> rejected = new HashMap<>();
+        List<Card> unnumbered = new ArrayList<>();
+
+        for (int i = 0; i < rows.size(); i++) {
+            Card card = rows.get(i);
+            customerIds.add(card.getCustomerId());
+            if (card.getCardNumber() == null) {
+                unnumbered.add(card);
+            } else if (rowsByHash.putIfAbsent(PanHasher.hashHex(card.getCardNumber()), i) != null) {
+                rejected.put(i, "Duplicate card number in file");
+            }
+        }
+
+        Set<Integer> knownCustomerIds = customerDAO.findExistingCustomerIds(customerIds);
+        for (String hash : cardDAO.findExistingCardNumberHashes(rowsByHash.keySet())) {
+            rejected.put(rowsByHash.get(hash), "Card number already issued");
+        }
+
+        List<String> numbers = cardService.issueCardNumbers(unnumbered.size());
+        for (int i = 0; i < unnumbered.size(); i++) {
+            unnumbered.get(i).setCardNumber(numbers.get(i));
+        }
+
+        List<Card> accepted = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            if (!knownCustomerIds.contains(rows.get(i).getCustomerId())) {
+                rejected.put(i, "Customer not found");
+            } else if (!rejected.containsKey(i)) {
+                accepted.add(rows.get(i));
+            }
+        }
+        for (int start = 0; start < accepted.size(); start += CARD_BATCH_SIZE) {
+            cardDAO.insertAll(conn, accepted.subList(start, Math.min(start + CARD_BATCH_SIZE, accepted.size())));
+        }
+        return rejected;
+    }
+
+    private static void requireColumns(String[] fields, int count) {
+        if (fields.length < count) {
+            throw new IllegalArgumentException("Expected " + count + " columns but found " + fields.length);
+        }
     }
 
-    public void importOperationsFromExcel(String filePath) throws SQLException {
-        // Implementation for importing operations from Excel file
-        // This would parse Excel file and create CardOperation objects
-        System.out.println("Importing operations from Excel file: " + filePath);
-        // TODO: Implement Excel parsing logic
+    private static BigDecimal requireAmount(String value, String column) {
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException(column + " is required");
+        }
+        return new BigDecimal(value);
+    }
+
+    private static boolean isCsv(String filePath) {
+        return filePath.toLowerCase().endsWith(".csv");
+    }
+
+    public ExportReport exportOperationsToExcel(String filePath, List<Integer> cardIds) throws SQLException, IOException {
+        return exportOperations(filePath, cardIds, List.of(), null, null, rows -> { });
+    }
+
+    public ExportReport exportCardsToExcel(String filePath, List<Integer> clientIds) throws SQLException, IOException {
+        return exportCards(filePath, List.of(), clientIds, rows -> { });
+    }
+
+    // Rows come off a server-side cursor and go straight to the file, so memory use does not
+    // depend on how many operations match. Same columns as the CSV import, plus operationId.
+    // startDate is inclusive and endDate exclusive; either may be null for no bound.
+    public ExportReport exportOperations(String filePath, List<Integer> cardIds, List<Integer> customerIds,
+                                         LocalDateTime startDate, LocalDateTime endDate, LongConsumer progress)
+            throws SQLException, IOException {
+        long start = System.nanoTime();
+        long count;
+
+        try (ExportSink sink = ExportSink.open(Path.of(filePath));
+             PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            sink.writeRow(List.of("operationDate", "amount", "operationType", "location", "cardId", "operationId"));
+            long[] written = {0};
+            count = operationDAO.streamFiltered(pooled.getConnection(), cardIds, customerIds, startDate, endDate, operation -> {
+                writeExportRow(sink, Arrays.asList(operation.operationDate().toString(), operation.amount(),
+                    operation.operationType().name(), operation.location(), operation.cardId(), operation.operationId()));
+                reportProgress(++written[0], progress);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Metrics.add("export.rowsExported", count);
+        return new ExportReport(filePath, count, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    // Same columns as the CSV card import, plus cardId.
+    public ExportReport exportCards(String filePath, List<Integer> cardIds, List<Integer> customerIds, LongConsumer progress)
+            throws SQLException, IOException {
+        long start = System.nanoTime();
+        long count;
+
+        try (ExportSink sink = ExportSink.open(Path.of(filePath));
+             PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            sink.writeRow(List.of("cardNumber", "cardType", "customerId", "expirationDate", "cardStatus",
+                "dailyLimit", "monthlyLimit", "interestRate", "availableBalance", "cardId"));
+            long[] written = {0};
+            count = cardDAO.streamFiltered(pooled.getConnection(), cardIds, customerIds, card -> {
+                writeExportRow(sink, cardRow(card));
+                reportProgress(++written[0], progress);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Metrics.add("export.rowsExported", count);
+        return new ExportReport(filePath, count, Duration.ofNanos(System.nanoTime() - start));
     }
 
-    public void importCardsFromExcel(String filePath) throws SQLException {
-        // Implementation for importing cards from Excel file
-        // This would parse Excel file and create Card objects
-        System.out.println("Importing cards from Excel file: " + filePath);
-        // TODO: Implement Excel parsing logic
+    private static List<Object> cardRow(Card card) {
+        BigDecimal dailyLimit = card instanceof DebitCard ? ((DebitCard) card).getDailyLimit() : null;
+        BigDecimal monthlyLimit = card instanceof CreditCard ? ((CreditCard) card).getMonthlyLimit() : null;
+        BigDecimal interestRate = card instanceof CreditCard ? ((CreditCard) card).getInterestRate() : null;
+        BigDecimal availableBalance = card instanceof PrepaidCard ? ((PrepaidCard) card).getAvailableBalance() : null;
+        return Arrays.asList(card.getCardNumber(), card.getCardType().name(), card.getCustomerId(),
+            card.getExpirationDate().toString(), card.getCardStatus().name(),
+            dailyLimit, monthlyLimit, interestRate, availableBalance, card.getCardId());
     }
 
-    public void exportOperationsToExcel(String filePath, List<Integer> cardIds) throws SQLException {
-        // Implementation for exporting operations to Excel file
-        System.out.println("Exporting operations to Excel file: " + filePath);
-        // TODO: Implement Excel export logic
+    private static void writeExportRow(ExportSink sink, List<?> values) {
+        try {
+            sink.writeRow(values);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    public void exportCardsToExcel(String filePath, List<Integer> clientIds) throws SQLException {
-        // Implementation for exporting cards to Excel file
-        System.out.println("Exporting cards to Excel file: " + filePath);
-        // TODO: Implement Excel export logic
+    private static void reportProgress(long rows, LongConsumer progress) {
+        if (rows % EXPORT_PROGRESS_ROWS == 0) {
+            progress.accept(rows);
+        }
     }
 }
@@ -0,0 +1,17 @@
+package service;
+
+import java.time.Duration;
+
+public record ImportReport(
+    String filePath,
+    long resumedFromOffset,
+    long rowsRead,
+    long rowsImported,
+    long rowsRejected,
+    Duration elapsed
+) {
+    public double rowsPerSecond() {
+        double seconds = elapsed.toNanos() / 1_000_000_000.0;
+        return seconds == 0 ? rowsRead : rowsRead / seconds;
+    }
+}
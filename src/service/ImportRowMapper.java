@@ -0,0 +1,8 @@
+package service;
+
+// Turns one row's fields into an entity. Throws IllegalArgumentException (or a
+// DateTimeException) with the reason when the row is invalid.
+@FunctionalInterface
+public interface ImportRowMapper<T> {
+    T map(String[] fields);
+}
@@ -0,0 +1,390 @@
+package service;
+
+import entity.CardOperation;
+import entity.enums.OperationType;
+import util.CsvUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Cold tier for operations that ArchiveService moved out of CardOperation. Each month is a
+// directory under data/archive holding gzip CSV parts, one per archival run. Next to every part
+// a .cards file holds the bitset of card ids in it, so card history only opens parts that can
+// match and date queries only open the months they cover.
+//
+// Rows in a part are grouped by card and written as a series of gzip members of about
+// BLOCK_ROWS rows, each starting at a card boundary. A .blocks file maps the first card of every
+// member to its byte offset, so card history decompresses only the member holding the card.
+// Parts are always read as a stream and filtered row by row, never held in memory whole.
+public class OperationArchive {
+    private static final Path DEFAULT_DIRECTORY = Paths.get("data", "archive");
+    private static final String PART_PREFIX = "part-";
+    private static final String PART_SUFFIX = ".csv.gz";
+    private static final String CARDS_SUFFIX = ".cards";
+    private static final String BLOCKS_SUFFIX = ".blocks";
+    private static final String HEADER = "operationId,operationDate,amount,operationType,location,cardId,idempotencyKey,journalId";
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int BLOCK_ROWS = 4_096;
+
+    private static OperationArchive instance = null;
+
+    private final Path directory;
+    private final Map<Path, BitSet> cardsByPart;
+    private final Map<Path, Blocks> blocksByPart;
+
+    // First card id and byte offset of each gzip member, in file order.
+    private record Blocks(int[] firstCardIds, long[] offsets) {
+    }
+
+    private OperationArchive(Path directory) {
+        this.directory = directory;
+        this.cardsByPart = new ConcurrentHashMap<>();
+        this.blocksByPart = new ConcurrentHashMap<>();
+    }
+
+    public static synchronized OperationArchive getInstance() {
+        if (instance == null) {
+            instance = new OperationArchive(DEFAULT_DIRECTORY);
+        }
+        return instance;
+    }
+
+    public PartWriter openPart(YearMonth month) throws IOException {
+        Path monthDirectory = directory.resolve(month.toString());
+        Files.createDirectories(monthDirectory);
+        return new PartWriter(monthDirectory.resolve(PART_PREFIX + System.currentTimeMillis() + PART_SUFFIX));
+    }
+
+    // Both bounds inclusive, like CardOperationDAO.findByDateRange.
+    public List<CardOperation> findByDateRange(LocalDateTime startDate, LocalDateTime endDate) throws IOException {
+        List<CardOperation> operations = new ArrayList<>();
+        for (Path part : parts(YearMonth.from(startDate), YearMonth.from(endDate))) {
+            read(part, 0, true, operation -> {
+                if (!operation.operationDate().isBefore(startDate) && !operation.operationDate().isAfter(endDate)) {
+                    operations.add(operation);
+                }
+                return true;
+            });
+        }
+        return operations;
+    }
+
+    public List<CardOperation> findByCard(int cardId) throws IOException {
+        List<CardOperation> operations = new ArrayList<>();
+        for (Path part : parts(null, null)) {
+            BitSet cards = cards(part);
+            if (cards != null && !cards.get(cardId)) {
+                continue;
+            }
+
+            Blocks blocks = blocks(part);
+            if (blocks == null) {
+                read(part, 0, true, operation -> {
+                    if (operation.cardId() == cardId) {
+                        operations.add(operation);
+                    }
+                    return true;
+                });
+                continue;
+            }
+
+            // Rows are grouped by card, so the card's rows end where a higher card id begins.
+            int block = blockFor(blocks, cardId);
+            if (block < 0) {
+                continue;
+            }
+            read(part, blocks.offsets()[block], block == 0, operation -> {
+                if (operation.cardId() == cardId) {
+                    operations.add(operation);
+                }
+                return operation.cardId() <= cardId;
+            });
+        }
+        return operations;
+    }
+
+    // Index of the last block starting at or before cardId, or -1 if cardId precedes them all.
+    private static int blockFor(Blocks blocks, int cardId) {
+        int index = Arrays.binarySearch(blocks.firstCardIds(), cardId);
+        if (index >= 0) {
+            // Several blocks cannot share a first card, but be safe and take the earliest.
+            while (index > 0 && blocks.firstCardIds()[index - 1] == cardId) {
+                index--;
+            }
+            return index;
+        }
+        return -index - 2;
+    }
+
+    // Parts in months [from, to]; a null bound is open.
+    private List<Path> parts(YearMonth from, YearMonth to) throws IOException {
+        List<Path> parts = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return parts;
+        }
+
+        List<Path> months = new ArrayList<>();
+        try (var entries = Files.list(directory)) {
+            entries.filter(Files::isDirectory).sorted().forEach(months::add);
+        }
+        for (Path monthDirectory : months) {
+            YearMonth month;
+            try {
+                month = YearMonth.parse(monthDirectory.getFileName().toString());
+            } catch (DateTimeParseException e) {
+                continue;
+            }
+            if ((from != null && month.isBefore(from)) || (to != null && month.isAfter(to))) {
+                continue;
+            }
+            try (var entries = Files.list(monthDirectory)) {
+                entries.filter(file -> file.getFileName().toString().endsWith(PART_SUFFIX)).sorted().forEach(parts::add);
+            }
+        }
+        return parts;
+    }
+
+    // Null when the part has no card index, in which case it has to be read.
+    private BitSet cards(Path part) throws IOException {
+        BitSet cards = cardsByPart.get(part);
+        if (cards == null) {
+            Path cardsFile = cardsFile(part);
+            if (!Files.exists(cardsFile)) {
+                return null;
+            }
+            cards = BitSet.valueOf(Files.readAllBytes(cardsFile));
+            cardsByPart.put(part, cards);
+        }
+        return cards;
+    }
+
+    // Null for parts written before rows were grouped by card.
+    private Blocks blocks(Path part) throws IOException {
+        Blocks blocks = blocksByPart.get(part);
+        if (blocks == null) {
+            Path blocksFile = sibling(part, BLOCKS_SUFFIX);
+            if (!Files.exists(blocksFile)) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(blocksFile));
+            int count = bytes.remaining() / (Integer.BYTES + Long.BYTES);
+            int[] firstCardIds = new int[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                firstCardIds[i] = bytes.getInt();
+                offsets[i] = bytes.getLong();
+            }
+            blocks = new Blocks(firstCardIds, offsets);
+            blocksByPart.put(part, blocks);
+        }
+        return blocks;
+    }
+
+    // Streams rows from offset, which must be the start of a gzip member, to the visitor until it
+    // returns false or the part ends. Only the first member starts with the header line.
+    private static void read(Path part, long offset, boolean header, Predicate<CardOperation> visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                 new GZIPInputStream(Channels.newInputStream(channel.position(offset)), BUFFER_BYTES), StandardCharsets.UTF_8), BUFFER_BYTES)) {
+            if (header) {
+                reader.readLine();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!visitor.test(parse(line))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Parts written before the idempotencyKey and journalId columns have six fields. The
+    // journalId is kept for restores; CardOperation does not carry it.
+    private static CardOperation parse(String line) {
+        String[] fields = CsvUtils.parseLine(line);
+        return new CardOperation(
+            Integer.parseInt(fields[0]),
+            LocalDateTime.parse(fields[1]),
+            new BigDecimal(fields[2]),
+            OperationType.valueOf(fields[3]),
+            fields[4].isEmpty() ? null : fields[4],
+            Integer.parseInt(fields[5]),
+            fields.length > 6 && !fields[6].isEmpty() ? fields[6] : null
+        );
+    }
+
+    private static Path cardsFile(Path part) {
+        return sibling(part, CARDS_SUFFIX);
+    }
+
+    private static Path sibling(Path part, String suffix) {
+        String name = part.getFileName().toString();
+        return part.resolveSibling(name.substring(0, name.length() - PART_SUFFIX.length()) + suffix);
+    }
+
+    // Writes one part to a .partial file. Rows must arrive grouped by card. commit() forces it to
+    // disk and renames it into place; closing without committing deletes it.
+    public static final class PartWriter implements AutoCloseable {
+        private final Path part;
+        private final Path partial;
+        private final FileChannel channel;
+        private final OutputStream out;
+        private final BitSet cards;
+        private final ByteArrayOutputStream blocks;
+        private GZIPOutputStream gzip;
+        private BufferedWriter writer;
+        private int lastCardId = -1;
+        private long blockRows = 0;
+        private long rows = 0;
+        private boolean finished = false;
+
+        private PartWriter(Path part) throws IOException {
+            this.part = part;
+            this.partial = part.resolveSibling(part.getFileName() + ".partial");
+            this.channel = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.out = Channels.newOutputStream(channel);
+            this.cards = new BitSet();
+            this.blocks = new ByteArrayOutputStream();
+            startBlock(0);
+            writer.write(HEADER);
+            writer.newLine();
+        }
+
+        public void write(CardOperation operation, Long journalId) throws IOException {
+            int cardId = operation.cardId();
+            if (cardId < lastCardId) {
+                throw new IllegalStateException("Archive rows must be grouped by card");
+            }
+            if (cardId != lastCardId && blockRows >= BLOCK_ROWS) {
+                finishBlock();
+                startBlock(cardId);
+            } else if (rows == 0) {
+                rewriteFirstBlockCard(cardId);
+            }
+            lastCardId = cardId;
+
+            writer.write(Integer.toString(operation.operationId()));
+            writer.write(',');
+            writer.write(operation.operationDate().toString());
+            writer.write(',');
+            writer.write(operation.amount().toPlainString());
+            writer.write(',');
+            writer.write(operation.operationType().name());
+            writer.write(',');
+            writer.write(CsvUtils.escape(operation.location()));
+            writer.write(',');
+            writer.write(Integer.toString(cardId));
+            writer.write(',');
+            writer.write(CsvUtils.escape(operation.idempotencyKey()));
+            writer.write(',');
+            writer.write(journalId == null ? "" : Long.toString(journalId));
+            writer.newLine();
+            cards.set(cardId);
+            blockRows++;
+            rows++;
+        }
+
+        public long rows() {
+            return rows;
+        }
+
+        private void startBlock(int firstCardId) throws IOException {
+            ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+            entry.putInt(firstCardId).putLong(channel.position());
+            blocks.write(entry.array());
+            gzip = new GZIPOutputStream(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() {
+                    // Finishing a member must leave the file open for the next one.
+                }
+            }, BUFFER_BYTES);
+            writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), BUFFER_BYTES);
+            blockRows = 0;
+        }
+
+        // The first block is opened before any row is seen; it starts at the first row's card.
+        private void rewriteFirstBlockCard(int cardId) {
+            byte[] first = blocks.toByteArray();
+            ByteBuffer.wrap(first).putInt(0, cardId);
+            blocks.reset();
+            blocks.write(first, 0, first.length);
+        }
+
+        private void finishBlock() throws IOException {
+            writer.flush();
+            gzip.finish();
+        }
+
+        public void commit() throws IOException {
+            finishBlock();
+            channel.force(true);
+            writer.close();
+            channel.close();
+
+            // The indexes go first, so a visible part always has them.
+            writeIndex(cardsFile(part), cards.toByteArray());
+            writeIndex(sibling(part, BLOCKS_SUFFIX), blocks.toByteArray());
+            Files.move(partial, part, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        private static void writeIndex(Path file, byte[] content) throws IOException {
+            Path indexPartial = file.resolveSibling(file.getFileName() + ".partial");
+            try (FileChannel out = FileChannel.open(indexPartial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ByteBuffer.wrap(content);
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                out.force(true);
+            }
+            Files.move(indexPartial, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try (channel) {
+                writer.close();
+            } finally {
+                Files.deleteIfExists(partial);
+            }
+        }
+    }
+}
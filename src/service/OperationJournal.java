@@ -0,0 +1,595 @@
+package service;
+
+import dao.CardOperationDAO;
+import entity.CardOperation;
+import entity.enums.OperationType;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.CsvUtils;
+import util.Metrics;
+import util.MoneyUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Local write-ahead journal for operations. Entries are appended to memory-mapped segment files
+// and acknowledged once a sync thread has forced them to disk; one force covers every append
+// waiting at that moment. A drain thread copies synced entries into CardOperation in batches
+// and retries with backoff while the database is unavailable. Entries the database refuses
+// outright are moved to a dead-letter file instead of being retried.
+//
+// An entry's journalId is its position in the log, stored in a unique column, so entries that
+// are replayed after a restart, or drained twice, are inserted only once.
+public class OperationJournal {
+    private static final Path DEFAULT_DIRECTORY = Paths.get("data", "journal");
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String DRAINED_FILE = "drained.pos";
+    private static final String DEAD_LETTER_FILE = "dead-letter.csv";
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final int ENTRY_HEADER_BYTES = 8;
+    private static final int MAX_LOCATION_BYTES = 1_024;
+    private static final int DRAIN_BATCH = 1_000;
+    private static final long DRAIN_IDLE_MILLIS = 20;
+    private static final long MIN_DRAIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_DRAIN_BACKOFF_MILLIS = 5_000;
+
+    private static OperationJournal instance = null;
+
+    private final Path directory;
+    private final CardOperationDAO operationDAO;
+    private final ReentrantLock lock;
+    private final Condition appended;
+    private final Condition synced;
+    private final NavigableMap<Long, MappedByteBuffer> segments;
+    private final ExecutorService fraudCheckExecutor;
+    private final IdempotencyCache idempotencyCache;
+    private FraudService fraudService;
+
+    private MappedByteBuffer active;
+    private long activeSequence;
+    private volatile long writtenPosition;
+    private volatile long syncedPosition;
+    private volatile long drainedPosition;
+    private volatile boolean running = false;
+    private Thread syncThread;
+    private Thread drainThread;
+
+    private OperationJournal(Path directory) {
+        this.directory = directory;
+        this.operationDAO = new CardOperationDAO();
+        this.lock = new ReentrantLock();
+        this.appended = lock.newCondition();
+        this.synced = lock.newCondition();
+        this.segments = new ConcurrentSkipListMap<>();
+        this.idempotencyCache = IdempotencyCache.getInstance();
+        this.fraudCheckExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-fraud-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.registerGauge("journal.backlogBytes", () -> running ? writtenPosition - drainedPosition : 0);
+    }
+
+    public static synchronized OperationJournal getInstance() {
+        if (instance == null) {
+            instance = new OperationJournal(DEFAULT_DIRECTORY);
+        }
+        return instance;
+    }
+
+    // Maps the existing segments, replays everything after the drained position into the table
+    // and starts appending in a fresh segment, so a torn tail from a crash is never appended to.
+    // Throws if the backlog cannot be replayed; hasBacklog() then tells whether entries are waiting.
+    public synchronized void start() throws IOException, SQLException {
+        if (running) {
+            return;
+        }
+        Files.createDirectories(directory);
+        List<Long> sequences = listSegments();
+        Optional<Long> drained = readDrainedPosition();
+
+        long nextSequence;
+        long cursor;
+        if (sequences.isEmpty()) {
+            // Nothing on disk: start past any journalId the table already holds.
+            long used = drained.orElse(-1L);
+            try {
+                used = Math.max(used, operationDAO.findMaxJournalId());
+            } catch (SQLException e) {
+                if (drained.isEmpty()) {
+                    throw e;
+                }
+            }
+            nextSequence = used < 0 ? 0 : used / SEGMENT_BYTES + 1;
+            cursor = nextSequence * SEGMENT_BYTES;
+        } else {
+            cursor = drained.orElse(sequences.get(0) * SEGMENT_BYTES);
+            for (long sequence : sequences) {
+                if ((sequence + 1) * SEGMENT_BYTES <= cursor) {
+                    Files.deleteIfExists(segmentPath(sequence));
+                } else {
+                    segments.put(sequence, mapSegment(sequence));
+                }
+            }
+            nextSequence = sequences.get(sequences.size() - 1) + 1;
+        }
+
+        activeSequence = nextSequence;
+        active = mapSegment(activeSequence);
+        segments.put(activeSequence, active);
+        writtenPosition = activeSequence * SEGMENT_BYTES;
+        syncedPosition = writtenPosition;
+        drainedPosition = cursor;
+        if (fraudService == null) {
+            fraudService = new FraudService();
+        }
+        replayBacklog();
+
+        running = true;
+        syncThread = new Thread(this::syncLoop, "journal-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        drainThread = new Thread(this::drainLoop, "journal-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "journal-stop"));
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // True while entries from a previous run are on disk but not yet in CardOperation.
+    public boolean hasBacklog() {
+        return drainedPosition < writtenPosition;
+    }
+
+    // Entries acknowledged before a crash are replayed before start returns, so spend totals and
+    // idempotency keys loaded from the table afterwards already include them.
+    private void replayBacklog() throws SQLException, IOException {
+        long replayed = 0;
+        int drained;
+        while ((drained = drainOnce()) > 0) {
+            replayed += drained;
+        }
+        if (replayed > 0) {
+            Metrics.add("journal.replayed", replayed);
+        }
+    }
+
+    // Returns once the entry is on disk. The operation reaches CardOperation asynchronously.
+    public long append(CardOperation operation) {
+        long start = System.nanoTime();
+        byte[] body = encode(operation);
+        int entryBytes = ENTRY_HEADER_BYTES + body.length;
+        CRC32 crc = new CRC32();
+
+        long journalId;
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("Operation journal is not running");
+            }
+            int offset = (int) (writtenPosition - activeSequence * SEGMENT_BYTES);
+            if (offset + entryBytes > SEGMENT_BYTES) {
+                roll();
+                offset = 0;
+            }
+
+            journalId = writtenPosition;
+            ByteBuffer.wrap(body).putLong(0, journalId);
+            crc.update(body);
+            active.put(offset + ENTRY_HEADER_BYTES, body);
+            active.putInt(offset + Integer.BYTES, (int) crc.getValue());
+            // The length goes in last: a reader that sees it also sees the body.
+            active.putInt(offset, body.length);
+
+            long end = writtenPosition + entryBytes;
+            writtenPosition = end;
+            appended.signal();
+            while (syncedPosition < end) {
+                synced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Metrics.recordNanos("journal.append", System.nanoTime() - start);
+        return journalId;
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        lock.lock();
+        try {
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        drainThread.interrupt();
+        try {
+            syncThread.join(1_000);
+            drainThread.join(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        active.force();
+    }
+
+    private void roll() {
+        active.force();
+        syncedPosition = writtenPosition;
+        synced.signalAll();
+
+        activeSequence++;
+        try {
+            active = mapSegment(activeSequence);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create journal segment: " + e.getMessage(), e);
+        }
+        segments.put(activeSequence, active);
+        writtenPosition = activeSequence * SEGMENT_BYTES;
+        syncedPosition = writtenPosition;
+        Metrics.increment("journal.segmentRolled");
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long from;
+            long target;
+            long sequence;
+            MappedByteBuffer segment;
+
+            lock.lock();
+            try {
+                while (running && writtenPosition == syncedPosition) {
+                    appended.awaitUninterruptibly();
+                }
+                if (writtenPosition == syncedPosition) {
+                    return;
+                }
+                from = syncedPosition;
+                target = writtenPosition;
+                sequence = activeSequence;
+                segment = active;
+            } finally {
+                lock.unlock();
+            }
+
+            long base = sequence * SEGMENT_BYTES;
+            segment.force((int) (from - base), (int) (target - from));
+            Metrics.increment("journal.sync");
+
+            lock.lock();
+            try {
+                if (target > syncedPosition) {
+                    syncedPosition = target;
+                }
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drainLoop() {
+        long backoff = 0;
+        while (running) {
+            try {
+                if (drainOnce() == 0) {
+                    Thread.sleep(DRAIN_IDLE_MILLIS);
+                    continue;
+                }
+                backoff = 0;
+            } catch (SQLException e) {
+                Metrics.increment("journal.drain.failed");
+                backoff = Math.min(MAX_DRAIN_BACKOFF_MILLIS, Math.max(MIN_DRAIN_BACKOFF_MILLIS, backoff * 2));
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Metrics.increment("journal.drain.cursorNotSaved");
+            }
+        }
+    }
+
+    // Drains one batch past the cursor and returns how many entries it read, 0 once caught up.
+    // Throws only for transient failures, leaving the cursor where it was so the batch is retried.
+    private int drainOnce() throws SQLException, IOException {
+        List<CardOperation> operations = new ArrayList<>();
+        List<Long> journalIds = new ArrayList<>();
+        long end = readBatch(drainedPosition, syncedPosition, operations, journalIds);
+
+        if (operations.isEmpty()) {
+            drainedPosition = end;
+            releaseDrainedSegments();
+            return 0;
+        }
+
+        int inserted = insertOrDeadLetter(operations, journalIds);
+        Metrics.add("journal.drained", inserted);
+        drainedPosition = end;
+        checkFraud(operations);
+        writeDrainedPosition(end);
+        return operations.size();
+    }
+
+    // Inserts a batch in one transaction. If the table refuses it for anything other than a lost
+    // connection, the entries are retried one at a time and those still refused go to the
+    // dead-letter file, so one bad entry cannot hold back every entry behind it.
+    private int insertOrDeadLetter(List<CardOperation> operations, List<Long> journalIds) throws SQLException, IOException {
+        try {
+            int inserted = insert(operations, journalIds);
+            operations.forEach(this::stored);
+            return inserted;
+        } catch (SQLException e) {
+            if (isTransient(e)) {
+                throw e;
+            }
+        }
+
+        int inserted = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            try {
+                inserted += insert(List.of(operations.get(i)), List.of(journalIds.get(i)));
+                stored(operations.get(i));
+            } catch (SQLException e) {
+                if (isTransient(e)) {
+                    throw e;
+                }
+                deadLetter(journalIds.get(i), operations.get(i), e);
+            }
+        }
+        return inserted;
+    }
+
+    private int insert(List<CardOperation> operations, List<Long> journalIds) throws SQLException {
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            Connection conn = pooled.getConnection();
+            conn.setAutoCommit(false);
+            int inserted = operationDAO.insertJournaled(conn, operations, journalIds);
+            conn.commit();
+            Metrics.add("journal.replayedDuplicates", operations.size() - inserted);
+            return inserted;
+        }
+    }
+
+    // Connection-class (08) and server shutdown (57P) states, and an interrupted wait for a pooled
+    // connection. Anything else is a verdict on the rows themselves and will not change on retry.
+    private static boolean isTransient(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && (state.startsWith("08") || state.startsWith("57P"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void stored(CardOperation operation) {
+        if (operation.idempotencyKey() != null) {
+            idempotencyCache.stored(operation.idempotencyKey());
+        }
+    }
+
+    // A unique violation here is an idempotency key taken by a row that did not come from this
+    // entry: the journalId conflict is already absorbed by the insert.
+    private void deadLetter(long journalId, CardOperation operation, SQLException e) throws IOException {
+        if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+            Metrics.increment("journal.idempotencyConflict");
+        }
+        if (operation.idempotencyKey() != null) {
+            idempotencyCache.release(operation.idempotencyKey());
+        }
+        String line = String.join(",",
+            Long.toString(journalId),
+            operation.operationDate().toString(),
+            operation.amount().toPlainString(),
+            operation.operationType().name(),
+            CsvUtils.escape(operation.location()),
+            Integer.toString(operation.cardId()),
+            CsvUtils.escape(operation.idempotencyKey()),
+            CsvUtils.escape(e.getSQLState()),
+            CsvUtils.escape(e.getMessage() == null ? "" : e.getMessage().replaceAll("\\s+", " "))) + System.lineSeparator();
+        Files.writeString(directory.resolve(DEAD_LETTER_FILE), line, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Metrics.increment("journal.deadLettered");
+        System.err.println("Journal entry " + journalId + " for card " + operation.cardId()
+            + " refused by the database, moved to " + DEAD_LETTER_FILE + ": " + e.getMessage());
+    }
+
+    // Reads synced entries from position into the lists and returns the position after the last
+    // one read. An unreadable entry ends its segment; the next segment is read from its start.
+    private long readBatch(long position, long limit, List<CardOperation> operations, List<Long> journalIds) {
+        while (operations.size() < DRAIN_BATCH && position < limit) {
+            long sequence = position / SEGMENT_BYTES;
+            int offset = (int) (position % SEGMENT_BYTES);
+            MappedByteBuffer segment = segments.get(sequence);
+
+            CardOperation operation = segment == null ? null : decode(segment, offset, position);
+            if (operation == null) {
+                Long next = segments.higherKey(sequence);
+                if (next == null) {
+                    break;
+                }
+                position = next * SEGMENT_BYTES;
+                continue;
+            }
+
+            operations.add(operation);
+            journalIds.add(position);
+            position += ENTRY_HEADER_BYTES + segment.getInt(offset);
+        }
+        return position;
+    }
+
+    private void releaseDrainedSegments() {
+        long drainedSequence = drainedPosition / SEGMENT_BYTES;
+        for (Long sequence : segments.headMap(drainedSequence).keySet()) {
+            segments.remove(sequence);
+            try {
+                Files.deleteIfExists(segmentPath(sequence));
+            } catch (IOException e) {
+                Metrics.increment("journal.segmentNotDeleted");
+            }
+        }
+    }
+
+    private void checkFraud(List<CardOperation> operations) {
+        Set<Integer> cardIds = new LinkedHashSet<>();
+        operations.forEach(operation -> cardIds.add(operation.cardId()));
+        for (int cardId : cardIds) {
+            fraudCheckExecutor.execute(() -> {
+                try {
+                    fraudService.detectFraud(cardId);
+                } catch (Exception e) {
+                    Metrics.increment("fraud.check.deferred.failed");
+                    System.err.println("Fraud check failed for card " + cardId + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    // Body layout: journalId, epoch second, nanos, amount in cents, type ordinal, cardId, then
+    // location and idempotency key, each as a length (-1 for none) and UTF-8 bytes. The
+    // journalId is filled in on append.
+    private static byte[] encode(CardOperation operation) {
+        byte[] location = operation.location() == null ? null : operation.location().getBytes(StandardCharsets.UTF_8);
+        if (location != null && location.length > MAX_LOCATION_BYTES) {
+            throw new IllegalArgumentException("Location is too long");
+        }
+        byte[] idempotencyKey = operation.idempotencyKey() == null ? null : operation.idempotencyKey().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer body = ByteBuffer.allocate(37 + (location == null ? 0 : location.length)
+            + (idempotencyKey == null ? 0 : idempotencyKey.length));
+        body.putLong(0);
+        body.putLong(operation.operationDate().toEpochSecond(ZoneOffset.UTC));
+        body.putInt(operation.operationDate().getNano());
+        body.putLong(MoneyUtils.toCents(operation.amount()));
+        body.put((byte) operation.operationType().ordinal());
+        body.putInt(operation.cardId());
+        body.putShort((short) (location == null ? -1 : location.length));
+        if (location != null) {
+            body.put(location);
+        }
+        body.putShort((short) (idempotencyKey == null ? -1 : idempotencyKey.length));
+        if (idempotencyKey != null) {
+            body.put(idempotencyKey);
+        }
+        return body.array();
+    }
+
+    private static CardOperation decode(MappedByteBuffer segment, int offset, long position) {
+        if (offset + ENTRY_HEADER_BYTES > SEGMENT_BYTES) {
+            return null;
+        }
+        int length = segment.getInt(offset);
+        if (length < 35 || offset + ENTRY_HEADER_BYTES + length > SEGMENT_BYTES) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        segment.get(offset + ENTRY_HEADER_BYTES, bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer body = ByteBuffer.wrap(bytes);
+        if ((int) crc.getValue() != segment.getInt(offset + Integer.BYTES) || body.getLong() != position) {
+            return null;
+        }
+
+        LocalDateTime date = LocalDateTime.ofEpochSecond(body.getLong(), body.getInt(), ZoneOffset.UTC);
+        long cents = body.getLong();
+        OperationType type = OperationType.values()[body.get()];
+        int cardId = body.getInt();
+        short locationLength = body.getShort();
+        String location = null;
+        if (locationLength >= 0) {
+            location = new String(bytes, body.position(), locationLength, StandardCharsets.UTF_8);
+            body.position(body.position() + locationLength);
+        }
+        String idempotencyKey = null;
+        if (body.remaining() >= Short.BYTES) {
+            short keyLength = body.getShort();
+            if (keyLength >= 0) {
+                idempotencyKey = new String(bytes, body.position(), keyLength, StandardCharsets.UTF_8);
+            }
+        }
+        return new CardOperation(0, date, MoneyUtils.fromCents(cents), type, location, cardId, idempotencyKey);
+    }
+
+    private MappedByteBuffer mapSegment(long sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(sequence),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (var files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .forEach(sequences::add);
+        }
+        return sequences;
+    }
+
+    private Optional<Long> readDrainedPosition() throws IOException {
+        Path file = directory.resolve(DRAINED_FILE);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        return Optional.of(Long.parseLong(Files.readString(file).trim()));
+    }
+
+    private void writeDrainedPosition(long position) throws IOException {
+        Path temp = directory.resolve(DRAINED_FILE + ".tmp");
+        Files.writeString(temp, Long.toString(position));
+        Files.move(temp, directory.resolve(DRAINED_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,11 @@
+package service;
+
+// The request was well formed but the operation was declined: card inactive, limit or balance
+// exceeded, velocity limit reached, or idempotency key already used.
+public class OperationRefusedException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public OperationRefusedException(String message) {
+        super(message);
+    }
+}
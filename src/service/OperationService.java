@@ -1,64 +1,358 @@
 package service;
 
+import dao.CardDAO;
 import dao.CardOperationDAO;
 import entity.CardOperation;
+import entity.enums.CardType;
 import entity.enums.OperationType;
+import util.ConsoleUtils;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
 
 public class OperationService {
+    private static final long DEFAULT_AUTHORIZATION_BUDGET_MS = 20;
+    private static final BigDecimal FALLBACK_APPROVAL_CEILING = new BigDecimal("200");
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private static final ExecutorService authorizationExecutor = new ThreadPoolExecutor(
+        4, 32, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), daemonThreads("authorization-worker"));
+    private static final ExecutorService deferredFraudExecutor =
+        Executors.newSingleThreadExecutor(daemonThreads("deferred-fraud-check"));
+
     private final CardOperationDAO operationDAO;
+    private final CardDAO cardDAO;
     private final CardService cardService;
+    private final FraudService fraudService;
+    private final VelocityLimiter velocityLimiter;
+    private final SpendTracker spendTracker;
+    private final CardStateTable stateTable;
+    private final CardLockManager cardLocks;
+    private final OperationJournal journal;
+    private final OperationArchive archive;
+    private final IdempotencyCache idempotencyCache;
+    private final AdmissionController admission;
+    private final long authorizationBudgetNanos;
 
     public OperationService() {
+        this(Duration.ofMillis(DEFAULT_AUTHORIZATION_BUDGET_MS));
+    }
+
+    public OperationService(Duration authorizationBudget) {
         this.operationDAO = new CardOperationDAO();
+        this.cardDAO = new CardDAO();
         this.cardService = new CardService();
+        this.fraudService = new FraudService();
+        this.velocityLimiter = VelocityLimiter.getInstance();
+        this.spendTracker = SpendTracker.getInstance();
+        this.stateTable = CardStateTable.getInstance();
+        this.cardLocks = CardLockManager.getInstance();
+        this.journal = OperationJournal.getInstance();
+        this.archive = OperationArchive.getInstance();
+        this.idempotencyCache = IdempotencyCache.getInstance();
+        this.admission = AdmissionController.getInstance();
+        this.authorizationBudgetNanos = authorizationBudget.toNanos();
     }
 
     public CardOperation recordOperation(int cardId, BigDecimal amount, OperationType type, String location) throws SQLException {
-        if (!cardService.verifyLimit(cardId, amount)) {
-            throw new IllegalArgumentException("Operation refused: limit exceeded or card inactive");
+        return recordOperationWithDate(cardId, amount, type, location, LocalDateTime.now());
+    }
+
+    public CardOperation recordOperation(int cardId, BigDecimal amount, OperationType type, String location, String idempotencyKey) throws SQLException {
+        return recordOperationWithDate(cardId, amount, type, location, LocalDateTime.now(), idempotencyKey);
+    }
+
+    public CardOperation recordOperationWithDate(int cardId, BigDecimal amount, OperationType type, String location, LocalDateTime date) throws SQLException {
+        return recordOperationWithDate(cardId, amount, type, location, date, null);
+    }
+
+    // Throws RetryLaterException without touching the database when admission control sheds load.
+    public CardOperation recordOperationWithDate(int cardId, BigDecimal amount, OperationType type, String location, LocalDateTime date,
+                                                 String idempotencyKey) throws SQLException {
+        // A negative amount would credit a prepaid card through the debit and lower spend totals.
+        if (amount == null || amount.signum() <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+        try (AdmissionController.Permit permit = admission.acquire(AdmissionController.Priority.AUTHORIZATION)) {
+            try {
+                return recordOnce(cardId, amount, type, location, date, idempotencyKey);
+            } catch (SQLException e) {
+                permit.markFailed();
+                throw e;
+            }
         }
+    }
 
-        CardOperation operation = new CardOperation(
-            0,
-            LocalDateTime.now(),
-            amount,
-            type,
-            location,
-            cardId
-        );
+    // A retry carrying the key of an operation that was already recorded is refused before it
+    // counts against the card's velocity limit, so retries cannot look like repeated attempts.
+    private CardOperation recordOnce(int cardId, BigDecimal amount, OperationType type, String location, LocalDateTime date,
+                                     String idempotencyKey) throws SQLException {
+        if (idempotencyKey == null) {
+            return authorizeAndRecord(cardId, amount, type, location, date, null);
+        }
+
+        IdempotencyCache.validate(idempotencyKey);
+        Optional<Integer> existing = idempotencyCache.reserve(idempotencyKey);
+        if (existing.isPresent()) {
+            throw duplicateOperation(existing.get());
+        }
 
-        return operationDAO.save(operation);
+        boolean recorded = false;
+        try {
+            CardOperation saved = authorizeAndRecord(cardId, amount, type, location, date, idempotencyKey);
+            idempotencyCache.complete(idempotencyKey, saved.operationId());
+            recorded = true;
+            return saved;
+        } catch (SQLException e) {
+            // The cache only covers recent keys; the unique index catches the rest.
+            if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                throw duplicateOperation(0);
+            }
+            throw e;
+        } finally {
+            if (!recorded) {
+                idempotencyCache.release(idempotencyKey);
+            }
+        }
     }
 
-    public CardOperation recordOperationWithDate(int cardId, BigDecimal amount, OperationType type, String location, LocalDateTime date) throws SQLException {
-        if (!cardService.verifyLimit(cardId, amount)) {
-            throw new IllegalArgumentException("Operation refused: limit exceeded or card inactive");
+    private static OperationRefusedException duplicateOperation(int operationId) {
+        Metrics.increment("authorization.rejected.duplicate");
+        return new OperationRefusedException(operationId > 0
+            ? "Operation refused: idempotency key already used by operation " + operationId
+            : "Operation refused: idempotency key already used");
+    }
+
+    private CardOperation authorizeAndRecord(int cardId, BigDecimal amount, OperationType type, String location, LocalDateTime date,
+                                             String idempotencyKey) throws SQLException {
+        if (cardService.isCardInactive(cardId)) {
+            Metrics.increment("authorization.rejected.inactiveCard");
+            throw new OperationRefusedException("Operation refused: card is blocked or suspended");
         }
 
+        if (!velocityLimiter.tryAcquire(cardId, cardService.peekCardType(cardId), type)) {
+            throw new OperationRefusedException("Operation refused: too many attempts on this card, try again later");
+        }
+
+        long start = System.nanoTime();
+
         CardOperation operation = new CardOperation(
             0,
             date,
             amount,
             type,
             location,
-            cardId
+            cardId,
+            idempotencyKey
         );
 
-        return operationDAO.save(operation);
+        // Two operations on the same card must not both pass the limit check before either is recorded.
+        CardOperation saved;
+        boolean journaled = false;
+        long deadline;
+        CardLockManager.Handle cardLock = cardLocks.lock(cardId);
+        try {
+            // The budget starts once the card is ours: time spent queued behind another operation
+            // on the same card must not push this one onto the fallback policy.
+            deadline = System.nanoTime() + authorizationBudgetNanos;
+            authorize(cardId, amount, deadline);
+            if (cardService.getCardType(cardId) == CardType.PREPAID) {
+                saved = savePrepaidOperation(operation);
+            } else if (journal.isRunning()) {
+                // Durable once appended; the journal drains it into the table and runs the fraud check.
+                journal.append(operation);
+                saved = operation;
+                journaled = true;
+            } else {
+                saved = operationDAO.save(operation);
+            }
+            spendTracker.record(cardId, date, amount);
+        } finally {
+            cardLock.close();
+        }
+
+        if (!journaled) {
+            runFraudCheck(cardId, deadline);
+        }
+
+        Metrics.recordNanos("authorization.latency", System.nanoTime() - start);
+        return saved;
+    }
+
+    // The balance debit and the operation insert commit together, and the debit itself only
+    // succeeds if the balance still covers the amount, so concurrent debits cannot overdraw.
+    private CardOperation savePrepaidOperation(CardOperation operation) throws SQLException {
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            Connection conn = pooled.getConnection();
+            conn.setAutoCommit(false);
+
+            Optional<BigDecimal> balance = cardDAO.debitBalance(conn, operation.cardId(), operation.amount());
+            if (balance.isEmpty()) {
+                conn.rollback();
+                Metrics.increment("prepaid.debit.refused");
+                throw new OperationRefusedException("Operation refused: insufficient prepaid balance or card inactive");
+            }
+
+            CardOperation saved = operationDAO.save(conn, operation);
+            conn.commit();
+            cardService.applyPrepaidBalance(operation.cardId(), balance.get());
+            return saved;
+        }
+    }
+
+    private void authorize(int cardId, BigDecimal amount, long deadline) throws SQLException {
+        Boolean approved = callWithinBudget(() -> cardService.verifyLimit(cardId, amount), deadline);
+
+        if (approved == null) {
+            // The limit check could not answer in time: decide with the fallback policy and
+            // let the deferred fraud check catch anything the fast path let through.
+            Metrics.increment("authorization.budget.overrun");
+            approved = fallbackDecision(cardId, amount);
+            Metrics.increment(approved ? "authorization.fallback.approved" : "authorization.fallback.declined");
+        }
+
+        if (!approved) {
+            throw new OperationRefusedException("Operation refused: limit exceeded or card inactive");
+        }
+    }
+
+    // Must not block, so it only uses what is already in memory: the state table for status, expiry
+    // and limit, with the running totals once they are loaded. A card the table does not hold, or
+    // a limit decision without totals, gets the flat ceiling.
+    private boolean fallbackDecision(int cardId, BigDecimal amount) throws SQLException {
+        boolean totalsKnown = spendTracker.isLoaded();
+        CardStateTable.Decision decision = stateTable.decide(cardId, amount, LocalDate.now(),
+            totalsKnown ? spendTracker.spentTodayCents(cardId) : 0,
+            totalsKnown ? spendTracker.spentThisMonthCents(cardId) : 0);
+
+        if (decision == CardStateTable.Decision.DECLINED) {
+            return false;
+        }
+        if (decision == CardStateTable.Decision.APPROVED && totalsKnown) {
+            return true;
+        }
+        return amount.compareTo(FALLBACK_APPROVAL_CEILING) <= 0;
+    }
+
+    // The operation is recorded by the time this runs, so a failed check never fails the request:
+    // it is counted, reported and queued again as a deferred check.
+    private void runFraudCheck(int cardId, long deadline) throws SQLException {
+        Callable<Boolean> check = () -> {
+            try {
+                fraudService.detectFraud(cardId);
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                reportFraudCheckFailure("fraud.check.failed", cardId, e);
+                deferFraudCheck(cardId);
+                return false;
+            }
+        };
+
+        if (deadline - System.nanoTime() <= 0) {
+            Metrics.increment("fraud.check.budget.overrun");
+            deferFraudCheck(cardId);
+            return;
+        }
+
+        try {
+            Future<Boolean> future = authorizationExecutor.submit(check);
+            if (awaitWithinBudget(future, deadline) == null) {
+                // The check keeps running on its worker and still alerts, blocks or suspends when it completes.
+                Metrics.increment("fraud.check.budget.overrun");
+                Metrics.increment("fraud.check.deferred");
+            }
+        } catch (RejectedExecutionException e) {
+            deferFraudCheck(cardId);
+        }
+    }
+
+    private void deferFraudCheck(int cardId) {
+        Metrics.increment("fraud.check.deferred");
+        deferredFraudExecutor.execute(() -> {
+            try {
+                fraudService.detectFraud(cardId);
+            } catch (SQLException | RuntimeException e) {
+                reportFraudCheckFailure("fraud.check.deferred.failed", cardId, e);
+            }
+        });
+    }
+
+    private static void reportFraudCheckFailure(String metric, int cardId, Exception e) {
+        Metrics.increment(metric);
+        ConsoleUtils.printError("Fraud check failed for card " + cardId + ": " + e.getMessage());
+    }
+
+    private <T> T callWithinBudget(Callable<T> task, long deadline) throws SQLException {
+        try {
+            return awaitWithinBudget(authorizationExecutor.submit(task), deadline);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private <T> T awaitWithinBudget(Future<T> future, long deadline) throws SQLException {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Authorization interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Authorization failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
     public Optional<CardOperation> findOperationById(int id) throws SQLException {
         return operationDAO.findById(id);
     }
 
+    // Card history and date ranges cover the archive as well as the table. They are reads, so
+    // admission control sheds them before authorizations.
     public List<CardOperation> findOperationsByCard(int cardId) throws SQLException {
-        return operationDAO.findByCardId(cardId);
+        AdmissionController.Permit permit = admission.acquire(AdmissionController.Priority.READ);
+        try {
+            List<CardOperation> hot = operationDAO.findByCardId(cardId);
+            return mergeTiers(hot, archive.findByCard(cardId));
+        } catch (SQLException e) {
+            permit.markFailed();
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the operation archive", e);
+        } finally {
+            permit.close();
+        }
     }
 
     public List<CardOperation> findOperationsByType(OperationType type) throws SQLException {
@@ -74,19 +368,66 @@ public class OperationService {
     }
 
     public List<CardOperation> findOperationsByDateRange(LocalDateTime startDate, LocalDateTime endDate) throws SQLException {
-        return operationDAO.findByDateRange(startDate, endDate);
+        AdmissionController.Permit permit = admission.acquire(AdmissionController.Priority.READ);
+        try {
+            List<CardOperation> hot = operationDAO.findByDateRange(startDate, endDate);
+            return mergeTiers(hot, archive.findByDateRange(startDate, endDate));
+        } catch (SQLException e) {
+            permit.markFailed();
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the operation archive", e);
+        } finally {
+            permit.close();
+        }
+    }
+
+    // Newest first, like the DAO. A row can be in both tiers if an archival run stopped before
+    // deleting it; the hot copy wins.
+    private static List<CardOperation> mergeTiers(List<CardOperation> hot, List<CardOperation> archived) {
+        if (archived.isEmpty()) {
+            return hot;
+        }
+        Set<Integer> seen = new HashSet<>();
+        List<CardOperation> merged = new ArrayList<>(hot.size() + archived.size());
+        for (CardOperation operation : hot) {
+            seen.add(operation.operationId());
+            merged.add(operation);
+        }
+        for (CardOperation operation : archived) {
+            if (seen.add(operation.operationId())) {
+                merged.add(operation);
+            }
+        }
+        merged.sort(Comparator.comparing(CardOperation::operationDate).reversed());
+        return merged;
     }
 
     public List<CardOperation> findAllOperations() throws SQLException {
         return operationDAO.findAll();
     }
 
+    // The running totals follow edits and deletions, so a corrected or removed operation stops
+    // counting against the card's daily and monthly limits.
     public boolean updateOperation(CardOperation operation) throws SQLException {
-        return operationDAO.update(operation);
+        Optional<CardOperation> previous = operationDAO.findById(operation.operationId());
+        boolean updated = operationDAO.update(operation);
+        if (updated && previous.isPresent()) {
+            CardOperation old = previous.get();
+            spendTracker.reverse(old.cardId(), old.operationDate(), old.amount());
+            spendTracker.record(operation.cardId(), operation.operationDate(), operation.amount());
+        }
+        return updated;
     }
 
     public boolean deleteOperation(int id) throws SQLException {
-        return operationDAO.delete(id);
+        Optional<CardOperation> previous = operationDAO.findById(id);
+        boolean deleted = operationDAO.delete(id);
+        if (deleted && previous.isPresent()) {
+            CardOperation old = previous.get();
+            spendTracker.reverse(old.cardId(), old.operationDate(), old.amount());
+        }
+        return deleted;
     }
 
     public List<CardOperation> getRecentOperations(int cardId) throws SQLException {
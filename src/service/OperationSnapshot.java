@@ -0,0 +1,233 @@
+package service;
+
+import entity.CardOperation;
+import entity.enums.OperationType;
+import util.MoneyUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+// Read-only, memory-mapped view of an operation snapshot written by OperationSnapshotWriter.
+// Rows are sorted by cardId, then date. Each column is a separate little-endian array:
+//   cardId int, operationId int, timestamp int (seconds since the previous row; every
+//   BLOCK_ROWS rows restart from an absolute value in the block index), amount long (cents),
+//   type byte and location int (codes into the two string dictionaries, where an operation
+//   without a location has a null entry).
+// Column reads go straight to the mapped pages; nothing is copied onto the heap.
+public class OperationSnapshot implements AutoCloseable {
+    static final int MAGIC = 0x4F50534E;
+    static final int FORMAT_VERSION = 1;
+    static final int BLOCK_ROWS = 4096;
+
+    static final int CARD_IDS = 0;
+    static final int OPERATION_IDS = 1;
+    static final int TIMESTAMPS = 2;
+    static final int AMOUNTS = 3;
+    static final int TYPES = 4;
+    static final int LOCATIONS = 5;
+    static final int BLOCK_INDEX = 6;
+    static final int TYPE_DICTIONARY = 7;
+    static final int LOCATION_DICTIONARY = 8;
+    static final int SECTION_COUNT = 9;
+    static final int HEADER_BYTES = 128;
+
+    @FunctionalInterface
+    public interface RowVisitor {
+        void visit(int row, int cardId, long epochSecond);
+    }
+
+    private final FileChannel channel;
+    private final int rowCount;
+    private final LocalDateTime createdAt;
+    private final IntBuffer cardIds;
+    private final IntBuffer operationIds;
+    private final IntBuffer timestampDeltas;
+    private final LongBuffer amounts;
+    private final ByteBuffer types;
+    private final IntBuffer locationCodes;
+    private final LongBuffer blockStarts;
+    private final OperationType[] typeDictionary;
+    private final String[] locationDictionary;
+
+    private OperationSnapshot(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+            throw new IOException("Not an operation snapshot, or written by another version");
+        }
+        long rows = header.getLong();
+        if (rows > Integer.MAX_VALUE / Long.BYTES) {
+            throw new IOException("Snapshot has too many rows to map: " + rows);
+        }
+        this.rowCount = (int) rows;
+        this.createdAt = LocalDateTime.ofEpochSecond(header.getLong() / 1000, 0, ZoneOffset.UTC);
+        long[] offsets = new long[SECTION_COUNT];
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            offsets[i] = header.getLong();
+        }
+
+        int blocks = (rowCount + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        this.cardIds = map(offsets[CARD_IDS], (long) rowCount * Integer.BYTES).asIntBuffer();
+        this.operationIds = map(offsets[OPERATION_IDS], (long) rowCount * Integer.BYTES).asIntBuffer();
+        this.timestampDeltas = map(offsets[TIMESTAMPS], (long) rowCount * Integer.BYTES).asIntBuffer();
+        this.amounts = map(offsets[AMOUNTS], (long) rowCount * Long.BYTES).asLongBuffer();
+        this.types = map(offsets[TYPES], rowCount);
+        this.locationCodes = map(offsets[LOCATIONS], (long) rowCount * Integer.BYTES).asIntBuffer();
+        this.blockStarts = map(offsets[BLOCK_INDEX], (long) blocks * Long.BYTES).asLongBuffer();
+
+        String[] typeNames = readStrings(offsets[TYPE_DICTIONARY], offsets[LOCATION_DICTIONARY]);
+        this.typeDictionary = new OperationType[typeNames.length];
+        for (int i = 0; i < typeNames.length; i++) {
+            typeDictionary[i] = OperationType.valueOf(typeNames[i]);
+        }
+        this.locationDictionary = readStrings(offsets[LOCATION_DICTIONARY], channel.size());
+    }
+
+    public static OperationSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new OperationSnapshot(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    public LocalDateTime createdAt() {
+        return createdAt;
+    }
+
+    public int cardId(int row) {
+        return cardIds.get(row);
+    }
+
+    public int operationId(int row) {
+        return operationIds.get(row);
+    }
+
+    public long amountCents(int row) {
+        return amounts.get(row);
+    }
+
+    public int typeCode(int row) {
+        return types.get(row);
+    }
+
+    public OperationType operationType(int row) {
+        return typeDictionary[types.get(row)];
+    }
+
+    public OperationType typeForCode(int typeCode) {
+        return typeDictionary[typeCode];
+    }
+
+    public int typeCount() {
+        return typeDictionary.length;
+    }
+
+    public int locationCode(int row) {
+        return locationCodes.get(row);
+    }
+
+    public String locationForCode(int locationCode) {
+        return locationDictionary[locationCode];
+    }
+
+    public int locationCount() {
+        return locationDictionary.length;
+    }
+
+    public long epochSecond(int row) {
+        int blockStart = row - row % BLOCK_ROWS;
+        long epochSecond = blockStarts.get(row / BLOCK_ROWS);
+        for (int i = blockStart + 1; i <= row; i++) {
+            epochSecond += timestampDeltas.get(i);
+        }
+        return epochSecond;
+    }
+
+    // Calls the visitor for rows [fromRow, toRow) in order, decoding timestamps as it goes.
+    public void scan(int fromRow, int toRow, RowVisitor visitor) {
+        long epochSecond = fromRow < toRow ? epochSecond(fromRow) : 0;
+        for (int row = fromRow; row < toRow; row++) {
+            if (row > fromRow) {
+                epochSecond = row % BLOCK_ROWS == 0 ? blockStarts.get(row / BLOCK_ROWS) : epochSecond + timestampDeltas.get(row);
+            }
+            visitor.visit(row, cardIds.get(row), epochSecond);
+        }
+    }
+
+    // First row at or after fromRow whose cardId differs from the row before it.
+    public int nextCardStart(int fromRow) {
+        if (fromRow <= 0 || fromRow >= rowCount) {
+            return Math.max(0, Math.min(fromRow, rowCount));
+        }
+        int cardId = cardIds.get(fromRow - 1);
+        int low = fromRow;
+        int high = rowCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cardIds.get(mid) <= cardId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public CardOperation operation(int row, long epochSecond) {
+        return new CardOperation(operationIds.get(row), toDateTime(epochSecond), MoneyUtils.fromCents(amounts.get(row)),
+            operationType(row), locationDictionary[locationCodes.get(row)], cardIds.get(row));
+    }
+
+    public static long toEpochSecond(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static LocalDateTime toDateTime(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer map(long offset, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot column is too large to map: " + size + " bytes");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private String[] readStrings(long offset, long end) throws IOException {
+        ByteBuffer buffer = map(offset, end - offset);
+        String[] values = new String[buffer.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            int length = buffer.getInt();
+            if (length == OperationSnapshotWriter.NULL_STRING) {
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            values[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+}
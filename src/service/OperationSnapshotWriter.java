@@ -0,0 +1,256 @@
+package service;
+
+import dao.CardOperationDAO;
+import entity.CardOperation;
+import entity.enums.OperationType;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+import util.MoneyUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes every stored operation into the columnar snapshot format read by OperationSnapshot.
+// Rows stream from one cursor into a temporary file per column; the columns are then copied
+// behind the header with transferTo, so neither step holds the table in memory.
+public class OperationSnapshotWriter {
+    private static final int COLUMN_BUFFER_BYTES = 1 << 20;
+    static final int NULL_STRING = -1;
+
+    private final CardOperationDAO operationDAO;
+
+    public OperationSnapshotWriter() {
+        this.operationDAO = new CardOperationDAO();
+    }
+
+    public long write(Path file) throws SQLException, IOException {
+        long start = System.nanoTime();
+        Path directory = file.toAbsolutePath().getParent();
+        Path columnDirectory = Files.createTempDirectory(directory, ".snapshot-");
+        Path partial = directory.resolve(file.getFileName() + ".partial");
+
+        Map<String, Integer> locationCodes = new HashMap<>();
+        List<String> locations = new ArrayList<>();
+        List<Long> blockStarts = new ArrayList<>();
+        long rows;
+
+        // The finally block also runs when streaming fails, so no temporary columns are left
+        // behind; after a successful move there is no partial file left to delete.
+        try {
+            try (ColumnOutput cardIds = new ColumnOutput(columnDirectory.resolve("cardId"));
+                 ColumnOutput operationIds = new ColumnOutput(columnDirectory.resolve("operationId"));
+                 ColumnOutput timestamps = new ColumnOutput(columnDirectory.resolve("timestamp"));
+                 ColumnOutput amounts = new ColumnOutput(columnDirectory.resolve("amount"));
+                 ColumnOutput types = new ColumnOutput(columnDirectory.resolve("type"));
+                 ColumnOutput locationColumn = new ColumnOutput(columnDirectory.resolve("location"));
+                 PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+                long[] previous = {0};
+                long[] row = {0};
+
+                rows = operationDAO.streamAllByCard(pooled.getConnection(), operation -> {
+                    long epochSecond = OperationSnapshot.toEpochSecond(operation.operationDate());
+                    if (row[0] % OperationSnapshot.BLOCK_ROWS == 0) {
+                        blockStarts.add(epochSecond);
+                        previous[0] = epochSecond;
+                    }
+                    long delta = epochSecond - previous[0];
+                    if (delta != (int) delta) {
+                        throw new IllegalStateException("Operation " + operation.operationId() + " is too far from the previous one");
+                    }
+                    previous[0] = epochSecond;
+                    row[0]++;
+
+                    Integer locationCode = locationCodes.get(operation.location());
+                    if (locationCode == null) {
+                        locationCode = locations.size();
+                        locationCodes.put(operation.location(), locationCode);
+                        locations.add(operation.location());
+                    }
+                    writeRow(operation, (int) delta, locationCode, cardIds, operationIds, timestamps, amounts, types, locationColumn);
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                long[] offsets = new long[OperationSnapshot.SECTION_COUNT];
+                out.position(OperationSnapshot.HEADER_BYTES);
+                offsets[OperationSnapshot.CARD_IDS] = append(out, columnDirectory.resolve("cardId"));
+                offsets[OperationSnapshot.OPERATION_IDS] = append(out, columnDirectory.resolve("operationId"));
+                offsets[OperationSnapshot.TIMESTAMPS] = append(out, columnDirectory.resolve("timestamp"));
+                offsets[OperationSnapshot.AMOUNTS] = append(out, columnDirectory.resolve("amount"));
+                offsets[OperationSnapshot.TYPES] = append(out, columnDirectory.resolve("type"));
+                offsets[OperationSnapshot.LOCATIONS] = append(out, columnDirectory.resolve("location"));
+                offsets[OperationSnapshot.BLOCK_INDEX] = appendLongs(out, blockStarts);
+                List<String> typeNames = new ArrayList<>();
+                for (OperationType type : OperationType.values()) {
+                    typeNames.add(type.name());
+                }
+                offsets[OperationSnapshot.TYPE_DICTIONARY] = appendStrings(out, typeNames);
+                offsets[OperationSnapshot.LOCATION_DICTIONARY] = appendStrings(out, locations);
+
+                ByteBuffer header = ByteBuffer.allocate(OperationSnapshot.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(OperationSnapshot.MAGIC);
+                header.putInt(OperationSnapshot.FORMAT_VERSION);
+                header.putLong(rows);
+                header.putLong(System.currentTimeMillis());
+                for (long offset : offsets) {
+                    header.putLong(offset);
+                }
+                header.flip();
+                out.write(header, 0);
+                out.force(true);
+            }
+
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            try (var columns = Files.list(columnDirectory)) {
+                for (Path column : (Iterable<Path>) columns::iterator) {
+                    Files.delete(column);
+                }
+            }
+            Files.delete(columnDirectory);
+            Files.deleteIfExists(partial);
+        }
+
+        Metrics.recordNanos("snapshot.write", System.nanoTime() - start);
+        return rows;
+    }
+
+    private static void writeRow(CardOperation operation, int timestampDelta, int locationCode, ColumnOutput cardIds,
+                                 ColumnOutput operationIds, ColumnOutput timestamps, ColumnOutput amounts,
+                                 ColumnOutput types, ColumnOutput locations) {
+        try {
+            cardIds.putInt(operation.cardId());
+            operationIds.putInt(operation.operationId());
+            timestamps.putInt(timestampDelta);
+            amounts.putLong(MoneyUtils.toCents(operation.amount()));
+            types.putByte((byte) operation.operationType().ordinal());
+            locations.putInt(locationCode);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Appends a column at the next 8-byte boundary and returns where it starts.
+    private static long append(FileChannel out, Path column) throws IOException {
+        long offset = align(out);
+        try (FileChannel in = FileChannel.open(column, StandardOpenOption.READ)) {
+            long size = in.size();
+            long copied = 0;
+            while (copied < size) {
+                copied += in.transferTo(copied, size - copied, out);
+            }
+        }
+        return offset;
+    }
+
+    private static long appendLongs(FileChannel out, List<Long> values) throws IOException {
+        long offset = align(out);
+        ByteBuffer buffer = ByteBuffer.allocate(values.size() * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        values.forEach(buffer::putLong);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return offset;
+    }
+
+    // Count, then each string as a length-prefixed UTF-8 byte run. A null string has length
+    // NULL_STRING and no bytes.
+    private static long appendStrings(FileChannel out, List<String> values) throws IOException {
+        long offset = align(out);
+        ByteBuffer buffer = ByteBuffer.allocate(COLUMN_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(values.size());
+        for (String value : values) {
+            byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            int length = value == null ? NULL_STRING : bytes.length;
+            if (buffer.remaining() < Integer.BYTES + bytes.length) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                if (buffer.remaining() < Integer.BYTES + bytes.length) {
+                    buffer = ByteBuffer.allocate(Integer.BYTES + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            buffer.putInt(length);
+            buffer.put(bytes);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return offset;
+    }
+
+    private static long align(FileChannel out) throws IOException {
+        long position = out.position();
+        long aligned = (position + 7) & ~7L;
+        if (aligned != position) {
+            out.write(ByteBuffer.allocate((int) (aligned - position)));
+        }
+        return aligned;
+    }
+
+    private static final class ColumnOutput implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        private ColumnOutput(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.buffer = ByteBuffer.allocate(COLUMN_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void putByte(byte value) throws IOException {
+            ensureRoom(Byte.BYTES);
+            buffer.put(value);
+        }
+
+        private void putInt(int value) throws IOException {
+            ensureRoom(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            ensureRoom(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        private void ensureRoom(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            drain();
+            channel.close();
+        }
+    }
+}
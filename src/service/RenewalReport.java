@@ -0,0 +1,18 @@
+package service;
+
+import java.time.Duration;
+import java.time.LocalDate;
+
+public record RenewalReport(
+    LocalDate fromDate,
+    LocalDate toDate,
+    long cardsRenewed,
+    long chunksCommitted,
+    long chunkRetries,
+    Duration elapsed
+) {
+    public double cardsPerSecond() {
+        double seconds = elapsed.toNanos() / 1_000_000_000.0;
+        return seconds == 0 ? cardsRenewed : cardsRenewed / seconds;
+    }
+}
@@ -0,0 +1,147 @@
+package service;
+
+import dao.CardDAO;
+import entity.Card;
+import entity.CreditCard;
+import entity.DebitCard;
+import entity.PrepaidCard;
+import entity.enums.CardType;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+// Issues replacements for cards expiring in a date window. Each chunk of cards is renewed in one
+// transaction: the new cards are inserted and the old ones point at them. Renewed cards drop out
+// of the query, so a job that stops part-way can simply be run again.
+public class RenewalService {
+    private static final int CHUNK_SIZE = 1_000;
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final int VALIDITY_YEARS = 3;
+
+    private final CardDAO cardDAO;
+    private final CardService cardService;
+    private final CardCache cardCache;
+    private final CardStateTable stateTable;
+    private final CardNumberIndex cardNumberIndex;
+    private final CardStatusRegistry statusRegistry;
+
+    public RenewalService() {
+        this.cardDAO = new CardDAO();
+        this.cardService = new CardService();
+        this.cardCache = CardCache.getInstance();
+        this.stateTable = CardStateTable.getInstance();
+        this.cardNumberIndex = CardNumberIndex.getInstance();
+        this.statusRegistry = CardStatusRegistry.getInstance();
+    }
+
+    public RenewalReport renewExpiringCards(LocalDate from, LocalDate to) throws SQLException {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("End date must not be before start date");
+        }
+
+        long start = System.nanoTime();
+        long renewed = 0;
+        long chunks = 0;
+        long retries = 0;
+        LocalDate afterDate = from;
+        int afterCardId = 0;
+
+        try (PooledConnection pooled = DatabaseConnection.acquirePooledConnection()) {
+            Connection conn = pooled.getConnection();
+            conn.setAutoCommit(false);
+
+            while (true) {
+                List<Card> expiring = null;
+                List<Card> replacements = null;
+
+                for (int attempt = 1; replacements == null; attempt++) {
+                    expiring = cardDAO.findExpiringPage(conn, from, to, afterDate, afterCardId, CHUNK_SIZE);
+                    if (expiring.isEmpty()) {
+                        break;
+                    }
+
+                    replacements = renewChunk(conn, expiring);
+                    if (replacements == null) {
+                        conn.rollback();
+                        retries++;
+                        Metrics.increment("renewal.chunkConflict");
+                        if (attempt == MAX_CHUNK_ATTEMPTS) {
+                            throw new SQLException("Cards kept changing while being renewed, stopped after card " + afterCardId);
+                        }
+                    }
+                }
+                if (replacements == null) {
+                    break;
+                }
+
+                conn.commit();
+                cardsRenewed(expiring, replacements);
+                renewed += replacements.size();
+                chunks++;
+                Metrics.add("renewal.cardsRenewed", replacements.size());
+
+                Card last = expiring.get(expiring.size() - 1);
+                afterDate = last.getExpirationDate();
+                afterCardId = last.getCardId();
+            }
+        }
+
+        return new RenewalReport(from, to, renewed, chunks, retries, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    // Null when one of the cards changed after it was read; the caller rolls back and retries.
+    private List<Card> renewChunk(Connection conn, List<Card> expiring) throws SQLException {
+        List<String> numbers = cardService.issueCardNumbers(expiring.size());
+        List<Card> replacements = new ArrayList<>(expiring.size());
+        for (int i = 0; i < expiring.size(); i++) {
+            replacements.add(replacementFor(expiring.get(i), numbers.get(i)));
+        }
+
+        cardDAO.insertAll(conn, replacements);
+        List<Integer> conflicts = cardDAO.markReplaced(conn, expiring, replacements);
+        return conflicts.isEmpty() ? replacements : null;
+    }
+
+    private Card replacementFor(Card card, String cardNumber) {
+        LocalDate base = card.getExpirationDate().isAfter(LocalDate.now()) ? card.getExpirationDate() : LocalDate.now();
+        LocalDate expiration = base.plusYears(VALIDITY_YEARS);
+
+        if (card instanceof DebitCard) {
+            DebitCard debitCard = (DebitCard) card;
+            return new DebitCard(0, cardNumber, expiration, card.getCardStatus(), card.getCustomerId(),
+                debitCard.getDailyLimit());
+        } else if (card instanceof CreditCard) {
+            CreditCard creditCard = (CreditCard) card;
+            return new CreditCard(0, cardNumber, expiration, card.getCardStatus(), card.getCustomerId(),
+                creditCard.getMonthlyLimit(), creditCard.getInterestRate());
+        } else {
+            PrepaidCard prepaidCard = (PrepaidCard) card;
+            return new PrepaidCard(0, cardNumber, expiration, card.getCardStatus(), card.getCustomerId(),
+                prepaidCard.getAvailableBalance());
+        }
+    }
+
+    // A replacement keeps the old card's status, so a blocked or suspended card's successor has to
+    // be refused just as fast.
+    private void cardsRenewed(List<Card> oldCards, List<Card> replacements) {
+        for (Card card : oldCards) {
+            cardCache.invalidate(card.getCardId());
+            if (card.getCardType() == CardType.PREPAID) {
+                stateTable.updateLimit(card.getCardId(), BigDecimal.ZERO);
+            }
+        }
+        for (Card card : replacements) {
+            stateTable.put(card);
+            cardNumberIndex.add(card.getCardNumber(), card.getCardId());
+            statusRegistry.recordStatus(card.getCardId(), card.getStatus());
+        }
+    }
+}
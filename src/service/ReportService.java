@@ -1,11 +1,13 @@
 package service;
 
+import dao.AsyncDAO;
 import dao.CardDAO;
 import dao.CardOperationDAO;
 import entity.Card;
 import entity.CardOperation;
 import entity.enums.CardStatus;
 import entity.enums.OperationType;
+import util.MoneyUtils;
 
 import java.math.BigDecimal;
 import java.sql.SQLException;
@@ -17,14 +19,19 @@ import java.util.stream.Collectors;
 public class ReportService {
     private final CardDAO cardDAO;
     private final CardOperationDAO operationDAO;
+    private final AdmissionController admission;
 
     public ReportService() {
         this.cardDAO = new CardDAO();
         this.operationDAO = new CardOperationDAO();
+        this.admission = AdmissionController.getInstance();
     }
 
+    // The table-backed reports are reads: admission control refuses them with RetryLaterException
+    // before they can crowd out authorizations. The permit covers the query, not the aggregation
+    // after it. The snapshot overloads do not touch the database.
     public List<Map.Entry<Integer, Long>> getTop5MostUsedCards() throws SQLException {
-        List<CardOperation> operations = operationDAO.findAll();
+        List<CardOperation> operations = read(operationDAO::findAll);
 
         Map<Integer, Long> operationsPerCard = operations.stream()
             .collect(Collectors.groupingBy(
@@ -42,7 +49,7 @@ public class ReportService {
         LocalDateTime start = month.atDay(1).atStartOfDay();
         LocalDateTime end = month.atEndOfMonth().atTime(23, 59, 59);
 
-        List<CardOperation> operations = operationDAO.findByDateRange(start, end);
+        List<CardOperation> operations = read(() -> operationDAO.findByDateRange(start, end));
 
         return operations.stream()
             .collect(Collectors.groupingBy(
@@ -56,7 +63,7 @@ public class ReportService {
     }
 
     public Map<CardStatus, Long> getCardStatusDistribution() throws SQLException {
-        List<Card> cards = cardDAO.findAll();
+        List<Card> cards = read(cardDAO::findAll);
 
         return cards.stream()
             .collect(Collectors.groupingBy(
@@ -69,7 +76,7 @@ public class ReportService {
         LocalDateTime startOfDay = date.toLocalDate().atStartOfDay();
         LocalDateTime endOfDay = date.toLocalDate().atTime(23, 59, 59);
 
-        List<CardOperation> dailyOperations = operationDAO.findByDateRange(startOfDay, endOfDay);
+        List<CardOperation> dailyOperations = read(() -> operationDAO.findByDateRange(startOfDay, endOfDay));
 
         Map<String, Object> summary = new HashMap<>();
         summary.put("totalOperations", dailyOperations.size());
@@ -86,7 +93,7 @@ public class ReportService {
     }
 
     public List<Map.Entry<String, Long>> getMostActiveLocations() throws SQLException {
-        List<CardOperation> operations = operationDAO.findAll();
+        List<CardOperation> operations = read(operationDAO::findAll);
 
         Map<String, Long> operationsByLocation = operations.stream()
             .collect(Collectors.groupingBy(
@@ -101,8 +108,8 @@ public class ReportService {
     }
 
     public Map<String, BigDecimal> getAverageAmountByCardType() throws SQLException {
-        List<Card> cards = cardDAO.findAll();
-        List<CardOperation> operations = operationDAO.findAll();
+        List<Card> cards = read(cardDAO::findAll);
+        List<CardOperation> operations = read(operationDAO::findAll);
 
         Map<Integer, String> cardTypes = cards.stream()
             .collect(Collectors.toMap(
@@ -131,6 +138,104 @@ public class ReportService {
             ));
     }
 
+    private <T> T read(AsyncDAO.Query<T> query) throws SQLException {
+        AdmissionController.Permit permit = admission.acquire(AdmissionController.Priority.READ);
+        try {
+            return query.run();
+        } catch (SQLException e) {
+            permit.markFailed();
+            throw e;
+        } finally {
+            permit.close();
+        }
+    }
+
+    // The snapshot overloads answer the same questions with column scans over a mapped
+    // OperationSnapshot instead of reading the operation table.
+    public List<Map.Entry<Integer, Long>> getTop5MostUsedCards(OperationSnapshot snapshot) {
+        PriorityQueue<Map.Entry<Integer, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        int row = 0;
+        while (row < snapshot.rowCount()) {
+            int next = snapshot.nextCardStart(row + 1);
+            top.add(Map.entry(snapshot.cardId(row), (long) (next - row)));
+            if (top.size() > 5) {
+                top.poll();
+            }
+            row = next;
+        }
+
+        return top.stream()
+            .sorted(Map.Entry.<Integer, Long>comparingByValue().reversed())
+            .toList();
+    }
+
+    public Map<OperationType, BigDecimal> getMonthlyStatistics(OperationSnapshot snapshot, YearMonth month) {
+        long start = OperationSnapshot.toEpochSecond(month.atDay(1).atStartOfDay());
+        long end = OperationSnapshot.toEpochSecond(month.atEndOfMonth().atTime(23, 59, 59));
+        long[] centsByType = new long[snapshot.typeCount()];
+        boolean[] seen = new boolean[snapshot.typeCount()];
+
+        snapshot.scan(0, snapshot.rowCount(), (row, cardId, epochSecond) -> {
+            if (epochSecond >= start && epochSecond <= end) {
+                int type = snapshot.typeCode(row);
+                centsByType[type] += snapshot.amountCents(row);
+                seen[type] = true;
+            }
+        });
+
+        Map<OperationType, BigDecimal> totals = new EnumMap<>(OperationType.class);
+        for (int type = 0; type < centsByType.length; type++) {
+            if (seen[type]) {
+                totals.put(snapshot.typeForCode(type), MoneyUtils.fromCents(centsByType[type]));
+            }
+        }
+        return totals;
+    }
+
+    public Map<String, Object> getDailyOperationsSummary(OperationSnapshot snapshot, LocalDateTime date) {
+        long start = OperationSnapshot.toEpochSecond(date.toLocalDate().atStartOfDay());
+        long end = OperationSnapshot.toEpochSecond(date.toLocalDate().atTime(23, 59, 59));
+        long[] countByType = new long[snapshot.typeCount()];
+        long[] totals = new long[2];
+
+        snapshot.scan(0, snapshot.rowCount(), (row, cardId, epochSecond) -> {
+            if (epochSecond >= start && epochSecond <= end) {
+                countByType[snapshot.typeCode(row)]++;
+                totals[0]++;
+                totals[1] += snapshot.amountCents(row);
+            }
+        });
+
+        Map<OperationType, Long> operationsByType = new EnumMap<>(OperationType.class);
+        for (int type = 0; type < countByType.length; type++) {
+            if (countByType[type] > 0) {
+                operationsByType.put(snapshot.typeForCode(type), countByType[type]);
+            }
+        }
+
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("totalOperations", (int) totals[0]);
+        summary.put("totalAmount", MoneyUtils.fromCents(totals[1]));
+        summary.put("operationsByType", operationsByType);
+        return summary;
+    }
+
+    public List<Map.Entry<String, Long>> getMostActiveLocations(OperationSnapshot snapshot) {
+        long[] countByLocation = new long[snapshot.locationCount()];
+        for (int row = 0; row < snapshot.rowCount(); row++) {
+            countByLocation[snapshot.locationCode(row)]++;
+        }
+
+        List<Map.Entry<String, Long>> locations = new ArrayList<>();
+        for (int code = 0; code < countByLocation.length; code++) {
+            locations.add(new AbstractMap.SimpleImmutableEntry<>(snapshot.locationForCode(code), countByLocation[code]));
+        }
+        return locations.stream()
+            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+            .limit(10)
+            .toList();
+    }
+
     public Map<String, Object> generateMonthlyReport(YearMonth month) throws SQLException {
         Map<String, Object> report = new HashMap<>();
 
@@ -0,0 +1,11 @@
+package service;
+
+// Work refused because the system is overloaded rather than because of the request itself;
+// the same request may succeed if retried after a short pause.
+public class RetryLaterException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public RetryLaterException(String message) {
+        super(message);
+    }
+}
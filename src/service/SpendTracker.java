@@ -0,0 +1,165 @@
+package service;
+
+import dao.CardOperationDAO;
+import util.Metrics;
+import util.MoneyUtils;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Running per-card totals for the current day and month, so cumulative limits are checked in O(1)
+// instead of summing the card's history on every authorization.
+//
+// load() builds a fresh map from the table and swaps it in. Amounts recorded before the first
+// successful load or while a load runs are kept aside and replayed into the new map. One whose
+// row the query also saw is counted twice, which errs towards declining, never towards letting a
+// card exceed its limit.
+public class SpendTracker {
+    private static SpendTracker instance = null;
+
+    private final CardOperationDAO operationDAO;
+    private final ReadWriteLock swapLock;
+    private volatile ConcurrentHashMap<Integer, AtomicReference<Totals>> totalsByCard;
+    private List<Recorded> recordedSinceLoad;
+    private volatile boolean loaded = false;
+
+    private record Recorded(int cardId, LocalDateTime operationDate, BigDecimal amount) {
+    }
+
+    private SpendTracker() {
+        this.operationDAO = new CardOperationDAO();
+        this.swapLock = new ReentrantReadWriteLock();
+        this.totalsByCard = new ConcurrentHashMap<>();
+        this.recordedSinceLoad = new ArrayList<>();
+        Metrics.registerGauge("spend.trackedCards", () -> totalsByCard.size());
+    }
+
+    public static synchronized SpendTracker getInstance() {
+        if (instance == null) {
+            instance = new SpendTracker();
+        }
+        return instance;
+    }
+
+    public synchronized void load() throws SQLException {
+        LocalDate today = LocalDate.now();
+        YearMonth month = YearMonth.from(today);
+
+        swapLock.writeLock().lock();
+        try {
+            if (recordedSinceLoad == null) {
+                recordedSinceLoad = new ArrayList<>();
+            }
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+
+        ConcurrentHashMap<Integer, AtomicReference<Totals>> loadedTotals = new ConcurrentHashMap<>();
+        operationDAO.sumAmountsByCardSince(month.atDay(1).atStartOfDay(), today.atStartOfDay(), (cardId, monthTotal, dayTotal) ->
+            loadedTotals.put(cardId, new AtomicReference<>(new Totals(
+                today.toEpochDay(), MoneyUtils.toCents(dayTotal), monthIndex(month), MoneyUtils.toCents(monthTotal)))));
+
+        swapLock.writeLock().lock();
+        try {
+            for (Recorded recorded : recordedSinceLoad) {
+                add(loadedTotals, recorded.cardId(), recorded.operationDate(), recorded.amount());
+            }
+            totalsByCard = loadedTotals;
+            recordedSinceLoad = null;
+            loaded = true;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+
+    public void record(int cardId, LocalDateTime operationDate, BigDecimal amount) {
+        swapLock.readLock().lock();
+        try {
+            add(totalsByCard, cardId, operationDate, amount);
+            if (recordedSinceLoad != null) {
+                synchronized (recordedSinceLoad) {
+                    recordedSinceLoad.add(new Recorded(cardId, operationDate, amount));
+                }
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    private static void add(ConcurrentHashMap<Integer, AtomicReference<Totals>> totalsByCard, int cardId,
+                            LocalDateTime operationDate, BigDecimal amount) {
+        LocalDate today = LocalDate.now();
+        LocalDate day = operationDate.toLocalDate();
+        boolean sameMonth = YearMonth.from(day).equals(YearMonth.from(today));
+        if (!sameMonth) {
+            return;
+        }
+
+        long cents = MoneyUtils.toCents(amount);
+        long dayCents = day.equals(today) ? cents : 0;
+        AtomicReference<Totals> totals = totalsByCard.computeIfAbsent(cardId, key -> new AtomicReference<>(Totals.EMPTY));
+        totals.updateAndGet(current -> current.rollTo(today).plus(dayCents, cents));
+    }
+
+    public void reverse(int cardId, LocalDateTime operationDate, BigDecimal amount) {
+        record(cardId, operationDate, amount.negate());
+    }
+
+    // True once totals are loaded, when the spent amounts below answer from memory alone.
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public long spentTodayCents(int cardId) throws SQLException {
+        return current(cardId).dayCents();
+    }
+
+    public long spentThisMonthCents(int cardId) throws SQLException {
+        return current(cardId).monthCents();
+    }
+
+    private Totals current(int cardId) throws SQLException {
+        ensureLoaded();
+        AtomicReference<Totals> totals = totalsByCard.get(cardId);
+        return totals == null ? Totals.EMPTY : totals.get().rollTo(LocalDate.now());
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    load();
+                }
+            }
+        }
+    }
+
+    private static int monthIndex(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    private record Totals(long epochDay, long dayCents, int monthKey, long monthCents) {
+        private static final Totals EMPTY = new Totals(Long.MIN_VALUE, 0, Integer.MIN_VALUE, 0);
+
+        private Totals rollTo(LocalDate today) {
+            int currentMonth = monthIndex(YearMonth.from(today));
+            if (epochDay == today.toEpochDay()) {
+                return this;
+            }
+            return new Totals(today.toEpochDay(), 0, currentMonth, monthKey == currentMonth ? monthCents : 0);
+        }
+
+        private Totals plus(long dayDelta, long monthDelta) {
+            return new Totals(epochDay, dayCents + dayDelta, monthKey, monthCents + monthDelta);
+        }
+    }
+}
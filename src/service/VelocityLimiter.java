@@ -0,0 +1,161 @@
+package service;
+
+import entity.enums.CardType;
+import entity.enums.OperationType;
+import util.Metrics;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-card, per-operation-type rate limiter using the generic cell rate algorithm: each bucket is a
+// single "theoretical arrival time" updated with CAS, so acquiring never takes a lock.
+//
+// The default limit comes from velocity.maxOperations and velocity.windowSeconds and applies to
+// every card type without its own velocity.<cardType>.maxOperations / .windowSeconds override.
+// Limits are an immutable snapshot swapped in by the setters. Replenished buckets are swept every
+// SWEEP_INTERVAL acquisitions; a live bucket is never dropped, since that would reset its limit,
+// so MAX_TRACKED_BUCKETS is a soft bound that only the number of cards active within a window
+// can exceed.
+public class VelocityLimiter {
+    private static final int DEFAULT_MAX_OPERATIONS = 5;
+    private static final Duration DEFAULT_WINDOW = Duration.ofMinutes(10);
+    private static final int MAX_TRACKED_BUCKETS = 200_000;
+    private static final int SWEEP_INTERVAL = 4_096;
+
+    private static VelocityLimiter instance = null;
+
+    private final ConcurrentHashMap<Long, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger acquisitionsSinceSweep = new AtomicInteger();
+    private volatile Limits limits;
+
+    // overrides only holds what was set for a card type; everything else falls back to defaults.
+    private record Limits(Map<OperationType, Limit> defaults, Map<CardType, Map<OperationType, Limit>> overrides) {
+        private Limit get(CardType cardType, OperationType type) {
+            Map<OperationType, Limit> cardTypeLimits = cardType == null ? null : overrides.get(cardType);
+            Limit limit = cardTypeLimits == null ? null : cardTypeLimits.get(type);
+            return limit != null ? limit : defaults.get(type);
+        }
+    }
+
+    private VelocityLimiter() {
+        Map<OperationType, Limit> defaults = new EnumMap<>(OperationType.class);
+        for (OperationType type : OperationType.values()) {
+            defaults.put(type, Limit.of(DEFAULT_MAX_OPERATIONS, DEFAULT_WINDOW));
+        }
+        this.limits = new Limits(defaults, new EnumMap<>(CardType.class));
+        Metrics.registerGauge("velocity.trackedBuckets", buckets::size);
+    }
+
+    public static synchronized VelocityLimiter getInstance() {
+        if (instance == null) {
+            instance = new VelocityLimiter();
+            instance.configure();
+        }
+        return instance;
+    }
+
+    private void configure() {
+        int maxOperations = Integer.getInteger("velocity.maxOperations", DEFAULT_MAX_OPERATIONS);
+        Duration window = Duration.ofSeconds(Long.getLong("velocity.windowSeconds", DEFAULT_WINDOW.toSeconds()));
+        for (OperationType type : OperationType.values()) {
+            setDefaultLimit(type, maxOperations, window);
+        }
+
+        for (CardType cardType : CardType.values()) {
+            String prefix = "velocity." + cardType.name().toLowerCase() + ".";
+            Integer cardTypeMaxOperations = Integer.getInteger(prefix + "maxOperations");
+            Long cardTypeWindowSeconds = Long.getLong(prefix + "windowSeconds");
+            if (cardTypeMaxOperations == null && cardTypeWindowSeconds == null) {
+                continue;
+            }
+            for (OperationType type : OperationType.values()) {
+                setLimit(cardType, type,
+                    cardTypeMaxOperations != null ? cardTypeMaxOperations : maxOperations,
+                    cardTypeWindowSeconds != null ? Duration.ofSeconds(cardTypeWindowSeconds) : window);
+            }
+        }
+    }
+
+    public synchronized void setLimit(CardType cardType, OperationType type, int maxOperations, Duration window) {
+        Map<OperationType, Limit> cardTypeLimits = new EnumMap<>(OperationType.class);
+        Map<OperationType, Limit> existing = limits.overrides().get(cardType);
+        if (existing != null) {
+            cardTypeLimits.putAll(existing);
+        }
+        cardTypeLimits.put(type, Limit.of(maxOperations, window));
+        Map<CardType, Map<OperationType, Limit>> overrides = new EnumMap<>(CardType.class);
+        overrides.putAll(limits.overrides());
+        overrides.put(cardType, cardTypeLimits);
+        limits = new Limits(limits.defaults(), overrides);
+    }
+
+    public synchronized void setDefaultLimit(OperationType type, int maxOperations, Duration window) {
+        Map<OperationType, Limit> defaults = new EnumMap<>(limits.defaults());
+        defaults.put(type, Limit.of(maxOperations, window));
+        limits = new Limits(defaults, limits.overrides());
+    }
+
+    public boolean tryAcquire(int cardId, OperationType type) {
+        return tryAcquire(cardId, null, type);
+    }
+
+    // cardType may be null when the card has not been loaded yet; the default limit then applies.
+    public boolean tryAcquire(int cardId, CardType cardType, OperationType type) {
+        Limit limit = limits.get(cardType, type);
+        long now = System.nanoTime();
+
+        if (acquisitionsSinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+            sweep(now);
+        }
+
+        AtomicLong arrivalTime = buckets.computeIfAbsent(bucketKey(cardId, type), key -> new AtomicLong(now));
+        while (true) {
+            long current = arrivalTime.get();
+            long base = current - now > 0 ? current : now;
+            if (base - now > limit.toleranceNanos()) {
+                Metrics.increment("velocity.rejected");
+                return false;
+            }
+            if (arrivalTime.compareAndSet(current, base + limit.intervalNanos())) {
+                return true;
+            }
+        }
+    }
+
+    public int trackedBuckets() {
+        return buckets.size();
+    }
+
+    private void sweep(long now) {
+        // Only the caller that resets the counter sweeps; the others carry on.
+        if (acquisitionsSinceSweep.getAndSet(0) < SWEEP_INTERVAL) {
+            return;
+        }
+
+        // A bucket whose arrival time has passed is fully replenished, so dropping it changes nothing.
+        int before = buckets.size();
+        buckets.values().removeIf(arrivalTime -> arrivalTime.get() - now <= 0);
+        Metrics.add("velocity.swept", Math.max(0, before - buckets.size()));
+        if (buckets.size() >= MAX_TRACKED_BUCKETS) {
+            Metrics.increment("velocity.overCapacity");
+        }
+    }
+
+    private static long bucketKey(int cardId, OperationType type) {
+        return ((long) cardId << 8) | type.ordinal();
+    }
+
+    private record Limit(long intervalNanos, long toleranceNanos) {
+        private static Limit of(int maxOperations, Duration window) {
+            if (maxOperations < 1) {
+                throw new IllegalArgumentException("Velocity limit needs at least one operation per window");
+            }
+            long intervalNanos = window.toNanos() / maxOperations;
+            return new Limit(intervalNanos, intervalNanos * (maxOperations - 1));
+        }
+    }
+}
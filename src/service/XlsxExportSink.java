@@ -0,0 +1,145 @@
+package service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Minimal .xlsx written as it goes: the sheet XML is streamed row by row into the zip, and the
+// package parts that list the sheets follow at close. Numbers are numeric cells, everything else
+// inline strings. A sheet holds at most MAX_SHEET_ROWS rows, Excel's limit; past that the export
+// continues on a new sheet that starts with the first sheet's header row again.
+public class XlsxExportSink implements ExportSink {
+    private static final int BUFFER_BYTES = 1 << 16;
+    static final int MAX_SHEET_ROWS = 1_048_576;
+
+    private final ZipOutputStream zip;
+    private final BufferedWriter writer;
+    private List<?> header = null;
+    private int sheets = 0;
+    private int sheetRows = 0;
+
+    public XlsxExportSink(OutputStream out) throws IOException {
+        this.zip = new ZipOutputStream(out);
+        this.writer = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8), BUFFER_BYTES);
+        startSheet();
+    }
+
+    @Override
+    public void writeRow(List<?> values) throws IOException {
+        if (header == null) {
+            header = new ArrayList<>(values);
+        } else if (sheetRows == MAX_SHEET_ROWS) {
+            endSheet();
+            startSheet();
+            writeCells(header);
+        }
+        writeCells(values);
+    }
+
+    @Override
+    public void close() throws IOException {
+        endSheet();
+
+        StringBuilder overrides = new StringBuilder();
+        StringBuilder sheetList = new StringBuilder();
+        StringBuilder relationships = new StringBuilder();
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            overrides.append("<Override PartName=\"/xl/worksheets/sheet").append(sheet)
+                .append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+            sheetList.append("<sheet name=\"").append(sheet == 1 ? "Export" : "Export " + sheet)
+                .append("\" sheetId=\"").append(sheet).append("\" r:id=\"rId").append(sheet).append("\"/>");
+            relationships.append("<Relationship Id=\"rId").append(sheet)
+                .append("\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet")
+                .append(sheet).append(".xml\"/>");
+        }
+
+        writePart("[Content_Types].xml",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+            + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+            + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+            + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>"
+            + overrides
+            + "</Types>");
+        writePart("_rels/.rels",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+            + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+            + "</Relationships>");
+        writePart("xl/workbook.xml",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" "
+            + "xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+            + "<sheets>" + sheetList + "</sheets></workbook>");
+        writePart("xl/_rels/workbook.xml.rels",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+            + relationships
+            + "</Relationships>");
+        zip.close();
+    }
+
+    private void startSheet() throws IOException {
+        sheets++;
+        sheetRows = 0;
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheets + ".xml"));
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>");
+    }
+
+    private void endSheet() throws IOException {
+        writer.write("</sheetData></worksheet>");
+        writer.flush();
+        zip.closeEntry();
+    }
+
+    private void writeCells(List<?> values) throws IOException {
+        sheetRows++;
+        writer.write("<row>");
+        for (Object value : values) {
+            if (value == null) {
+                writer.write("<c/>");
+            } else if (value instanceof Number) {
+                String number = value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString();
+                writer.write("<c><v>");
+                writer.write(number);
+                writer.write("</v></c>");
+            } else {
+                writer.write("<c t=\"inlineStr\"><is><t>");
+                writeEscaped(value.toString());
+                writer.write("</t></is></c>");
+            }
+        }
+        writer.write("</row>");
+    }
+
+    private void writePart(String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private void writeEscaped(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> writer.write("&amp;");
+                case '<' -> writer.write("&lt;");
+                case '>' -> writer.write("&gt;");
+                case '"' -> writer.write("&quot;");
+                default -> {
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                        writer.write(c);
+                    }
+                }
+            }
+        }
+    }
+}
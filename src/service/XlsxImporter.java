@@ -0,0 +1,387 @@
+package service;
+
+import dao.ImportCheckpointDAO;
+import util.CsvUtils;
+import util.DatabaseConnection;
+import util.DatabaseConnection.PooledConnection;
+import util.Metrics;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Reads the first sheet of an .xlsx workbook with a StAX pull parser, one row at a time, and
+// writes rows in bounded batches, one transaction per batch. Only the shared-string table is
+// held in memory, so heap use does not grow with the number of rows. As with CSV imports the
+// checkpoint is stored with each batch; for workbooks it counts data rows rather than bytes.
+public class XlsxImporter<T> {
+    private static final int BATCH_ROWS = 5_000;
+    private static final String RELATIONSHIP_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private final ImportRowMapper<T> rowMapper;
+    private final ImportBatchWriter<T> batchWriter;
+    private final ImportCheckpointDAO checkpointDAO;
+    private final XMLInputFactory xmlInputFactory;
+
+    public XlsxImporter(ImportRowMapper<T> rowMapper, ImportBatchWriter<T> batchWriter) {
+        this.rowMapper = rowMapper;
+        this.batchWriter = batchWriter;
+        this.checkpointDAO = new ImportCheckpointDAO();
+        this.xmlInputFactory = XMLInputFactory.newFactory();
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    public ImportReport run(Path file) throws SQLException, IOException {
+        long start = System.nanoTime();
+        String checkpointKey = file.toAbsolutePath().normalize().toString();
+        Path rejectedFile = file.resolveSibling(file.getFileName() + ".rejected");
+
+        long resumedFrom;
+        long rowsRead = 0;
+        long rowsImported = 0;
+        long rowsRejected = 0;
+
+        try (ZipFile workbook = new ZipFile(file.toFile());
+             PooledConnection pooled = DatabaseConnection.acquirePooledConnection();
+             BufferedWriter rejectedOut = Files.newBufferedWriter(rejectedFile, StandardCharsets.UTF_8,
+                 StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            Connection conn = pooled.getConnection();
+            resumedFrom = checkpointDAO.findOffset(conn, checkpointKey).orElse(0L);
+            conn.setAutoCommit(false);
+
+            try (InputStream sheet = workbook.getInputStream(entry(workbook, firstSheetPath(workbook)))) {
+                List<String> sharedStrings = readSharedStrings(workbook);
+                Map<Integer, Boolean> dateStyles = readDateStyles(workbook);
+                XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(sheet);
+                List<T> rows = new ArrayList<>(BATCH_ROWS);
+                List<Long> rowNumbers = new ArrayList<>(BATCH_ROWS);
+                List<String[]> rowFields = new ArrayList<>(BATCH_ROWS);
+                List<String> rejections = new ArrayList<>();
+                long dataRow = 0;
+                long batchRowsRead = 0;
+                boolean header = true;
+
+                String[] fields;
+                while ((fields = nextRow(reader, sharedStrings, dateStyles)) != null) {
+                    if (header) {
+                        header = false;
+                        continue;
+                    }
+                    if (isBlank(fields)) {
+                        continue;
+                    }
+                    dataRow++;
+                    if (dataRow <= resumedFrom) {
+                        continue;
+                    }
+
+                    batchRowsRead++;
+                    try {
+                        rows.add(rowMapper.map(fields));
+                        rowNumbers.add(dataRow);
+                        rowFields.add(fields);
+                    } catch (IllegalArgumentException | DateTimeException e) {
+                        rejections.add(rejection(dataRow, e.getMessage(), fields));
+                    }
+
+                    if (batchRowsRead == BATCH_ROWS) {
+                        long imported = writeBatch(conn, checkpointKey, dataRow, rows, rowNumbers, rowFields, rejections, rejectedOut);
+                        rowsRead += batchRowsRead;
+                        rowsImported += imported;
+                        rowsRejected += batchRowsRead - imported;
+                        batchRowsRead = 0;
+                    }
+                }
+
+                long imported = writeBatch(conn, checkpointKey, dataRow, rows, rowNumbers, rowFields, rejections, rejectedOut);
+                rowsRead += batchRowsRead;
+                rowsImported += imported;
+                rowsRejected += batchRowsRead - imported;
+                reader.close();
+            } catch (XMLStreamException e) {
+                throw new IOException("Malformed worksheet: " + e.getMessage(), e);
+            }
+
+            checkpointDAO.delete(conn, checkpointKey);
+            conn.commit();
+        }
+
+        if (rowsRejected == 0 && Files.size(rejectedFile) == 0) {
+            Files.delete(rejectedFile);
+        }
+        return new ImportReport(file.toString(), resumedFrom, rowsRead, rowsImported, rowsRejected,
+            Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    // Writes and commits one batch, then empties the batch lists. Returns the rows inserted.
+    private long writeBatch(Connection conn, String checkpointKey, long lastRow, List<T> rows, List<Long> rowNumbers,
+                            List<String[]> rowFields, List<String> rejections, BufferedWriter rejectedOut)
+            throws SQLException, IOException {
+        Map<Integer, String> rejectedRows = batchWriter.write(conn, rows);
+        checkpointDAO.save(conn, checkpointKey, lastRow);
+        conn.commit();
+
+        List<T> inserted = new ArrayList<>(rows.size() - rejectedRows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            String reason = rejectedRows.get(i);
+            if (reason == null) {
+                inserted.add(rows.get(i));
+            } else {
+                rejectedOut.write(rejection(rowNumbers.get(i), reason, rowFields.get(i)));
+            }
+        }
+        for (String rejection : rejections) {
+            rejectedOut.write(rejection);
+        }
+        rejectedOut.flush();
+        batchWriter.committed(inserted);
+        Metrics.add("import.rowsImported", inserted.size());
+
+        rows.clear();
+        rowNumbers.clear();
+        rowFields.clear();
+        rejections.clear();
+        return inserted.size();
+    }
+
+    // The next <row> as cell values by column, or null after the last row.
+    private String[] nextRow(XMLStreamReader reader, List<String> sharedStrings, Map<Integer, Boolean> dateStyles)
+            throws XMLStreamException {
+        List<String> values = null;
+        int column = 0;
+        String cellType = null;
+        int cellStyle = 0;
+        StringBuilder text = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "row" -> values = new ArrayList<>();
+                    case "c" -> {
+                        String ref = reader.getAttributeValue(null, "r");
+                        column = ref == null ? values.size() : columnIndex(ref);
+                        cellType = reader.getAttributeValue(null, "t");
+                        String style = reader.getAttributeValue(null, "s");
+                        cellStyle = style == null ? 0 : Integer.parseInt(style);
+                        text = new StringBuilder();
+                    }
+                    case "v", "t" -> {
+                        if (text != null) {
+                            text.append(reader.getElementText());
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (reader.getLocalName().equals("c") && values != null) {
+                    while (values.size() < column) {
+                        values.add("");
+                    }
+                    values.add(cellValue(text.toString(), cellType, dateStyles.get(cellStyle), sharedStrings));
+                    text = null;
+                } else if (reader.getLocalName().equals("row") && values != null) {
+                    return values.toArray(new String[0]);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Shared strings are looked up, numbers normalised so "42" parses as an int, and numbers in
+    // a date style turned into ISO dates (with a time when the style shows one).
+    private static String cellValue(String raw, String cellType, Boolean dateWithTime, List<String> sharedStrings) {
+        if (raw.isEmpty()) {
+            return "";
+        }
+        if ("s".equals(cellType)) {
+            return sharedStrings.get(Integer.parseInt(raw.trim())).trim();
+        }
+        if (cellType != null && !"n".equals(cellType)) {
+            return raw.trim();
+        }
+
+        BigDecimal number = new BigDecimal(raw.trim());
+        if (dateWithTime == null) {
+            return number.stripTrailingZeros().toPlainString();
+        }
+        LocalDateTime dateTime = LocalDate.of(1899, 12, 30).atStartOfDay()
+            .plusSeconds(Math.round(number.doubleValue() * 86_400));
+        return dateWithTime ? dateTime.toString() : dateTime.toLocalDate().toString();
+    }
+
+    private List<String> readSharedStrings(ZipFile workbook) throws IOException, XMLStreamException {
+        List<String> strings = new ArrayList<>();
+        ZipEntry entry = workbook.getEntry("xl/sharedStrings.xml");
+        if (entry == null) {
+            return strings;
+        }
+
+        try (InputStream in = workbook.getInputStream(entry)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            StringBuilder text = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (reader.getLocalName().equals("si")) {
+                        text = new StringBuilder();
+                    } else if (reader.getLocalName().equals("t") && text != null) {
+                        text.append(reader.getElementText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("si")) {
+                    strings.add(text.toString());
+                    text = null;
+                }
+            }
+            reader.close();
+        }
+        return strings;
+    }
+
+    // Maps each cell style index that formats a date to whether the format also shows a time.
+    private Map<Integer, Boolean> readDateStyles(ZipFile workbook) throws IOException, XMLStreamException {
+        Map<Integer, Boolean> dateStyles = new HashMap<>();
+        ZipEntry entry = workbook.getEntry("xl/styles.xml");
+        if (entry == null) {
+            return dateStyles;
+        }
+
+        Map<Integer, String> customFormats = new HashMap<>();
+        try (InputStream in = workbook.getInputStream(entry)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            boolean inCellXfs = false;
+            int styleIndex = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "numFmt" -> customFormats.put(Integer.parseInt(reader.getAttributeValue(null, "numFmtId")),
+                            reader.getAttributeValue(null, "formatCode"));
+                        case "cellXfs" -> inCellXfs = true;
+                        case "xf" -> {
+                            if (inCellXfs) {
+                                String formatId = reader.getAttributeValue(null, "numFmtId");
+                                Boolean withTime = dateFormat(formatId == null ? 0 : Integer.parseInt(formatId), customFormats);
+                                if (withTime != null) {
+                                    dateStyles.put(styleIndex, withTime);
+                                }
+                                styleIndex++;
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("cellXfs")) {
+                    inCellXfs = false;
+                }
+            }
+            reader.close();
+        }
+        return dateStyles;
+    }
+
+    // Null for non-date formats, otherwise whether the format shows a time of day.
+    private static Boolean dateFormat(int formatId, Map<Integer, String> customFormats) {
+        if (formatId >= 14 && formatId <= 17) {
+            return false;
+        }
+        if ((formatId >= 18 && formatId <= 22) || (formatId >= 45 && formatId <= 47)) {
+            return true;
+        }
+        String code = customFormats.get(formatId);
+        if (code == null) {
+            return null;
+        }
+        String unquoted = code.replaceAll("\"[^\"]*\"|\\[[^\\]]*\\]", "").toLowerCase();
+        if (!unquoted.contains("y") && !unquoted.contains("d")) {
+            return null;
+        }
+        return unquoted.contains("h") || unquoted.contains("s");
+    }
+
+    private String firstSheetPath(ZipFile workbook) throws IOException, XMLStreamException {
+        String relationshipId = null;
+        try (InputStream in = workbook.getInputStream(entry(workbook, "xl/workbook.xml"))) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            while (relationshipId == null && reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("sheet")) {
+                    relationshipId = reader.getAttributeValue(RELATIONSHIP_NS, "id");
+                }
+            }
+            reader.close();
+        }
+
+        ZipEntry relationships = workbook.getEntry("xl/_rels/workbook.xml.rels");
+        if (relationshipId == null || relationships == null) {
+            return "xl/worksheets/sheet1.xml";
+        }
+        try (InputStream in = workbook.getInputStream(relationships)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("Relationship")
+                        && relationshipId.equals(reader.getAttributeValue(null, "Id"))) {
+                    String target = reader.getAttributeValue(null, "Target");
+                    return target.startsWith("/") ? target.substring(1) : "xl/" + target;
+                }
+            }
+            reader.close();
+        }
+        return "xl/worksheets/sheet1.xml";
+    }
+
+    private static ZipEntry entry(ZipFile workbook, String name) throws IOException {
+        ZipEntry entry = workbook.getEntry(name);
+        if (entry == null) {
+            throw new IOException("Not an .xlsx workbook: missing " + name);
+        }
+        return entry;
+    }
+
+    private static int columnIndex(String cellRef) {
+        int index = 0;
+        for (int i = 0; i < cellRef.length() && Character.isLetter(cellRef.charAt(i)); i++) {
+            index = index * 26 + (Character.toUpperCase(cellRef.charAt(i)) - 'A' + 1);
+        }
+        return index - 1;
+    }
+
+    private static boolean isBlank(String[] fields) {
+        for (String field : fields) {
+            if (!field.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String rejection(long rowNumber, String reason, String[] fields) {
+        StringBuilder line = new StringBuilder().append(rowNumber).append(',').append(CsvUtils.escape(reason));
+        for (String field : fields) {
+            line.append(',').append(CsvUtils.escape(field));
+        }
+        return line.append(System.lineSeparator()).toString();
+    }
+}
@@ -4,10 +4,18 @@ import service.*;
 import entity.*;
 import entity.enums.*;
 import util.ConsoleUtils;
+import util.DatabaseConnection;
+import util.Metrics;
+import util.ViewUtils;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
@@ -20,6 +28,9 @@ public class MainMenu {
     private final FraudService fraudService;
     private final ReportService reportService;
     private final ImportExportService importExportService;
+    private final BacktestService backtestService;
+    private final RenewalService renewalService;
+    private final ArchiveService archiveService;
 
     public MainMenu() {
         this.scanner = new Scanner(System.in);
@@ -29,6 +40,9 @@ public class MainMenu {
         this.fraudService = new FraudService();
         this.reportService = new ReportService();
         this.importExportService = new ImportExportService();
+        this.backtestService = new BacktestService();
+        this.renewalService = new RenewalService();
+        this.archiveService = new ArchiveService();
     }
 
     public void start() {
@@ -47,6 +61,8 @@ public class MainMenu {
                     case 6 -> blockSuspendCard();
                     case 7 -> generateReports();
                     case 8 -> importExportMenu();
+                    case 9 -> renewExpiringCards();
+                    case 10 -> archiveOldOperations();
                     case 0 -> running = false;
                     default -> System.out.println("Invalid option. Please try again.");
                 }
@@ -69,6 +85,8 @@ public class MainMenu {
         System.out.println("6. Block/Suspend Card");
         System.out.println("7. Generate Reports");
         System.out.println("8. Import/Export");
+        System.out.println("9. Renew Expiring Cards");
+        System.out.println("10. Archive Old Operations");
         System.out.println("0. Exit");
         System.out.println("=============================================");
     }
@@ -117,7 +135,7 @@ public class MainMenu {
 
     private void performOperation() throws SQLException {
         System.out.println("\n--- Perform Operation ---");
-        int cardId = ConsoleUtils.readInt("Enter card ID: ");
+        int cardId = readCardReference("Enter card ID or card number: ");
         BigDecimal amount = ConsoleUtils.readBigDecimal("Enter amount: ");
         String location = ConsoleUtils.readString("Enter location: ");
 
@@ -137,10 +155,11 @@ public class MainMenu {
         };
 
         CardOperation operation = operationService.recordOperation(cardId, amount, type, location);
-        System.out.println("Operation recorded with ID: " + operation.getOperationId());
-
-        // Trigger fraud detection
-        fraudService.detectFraud(cardId);
+        if (operation.getOperationId() > 0) {
+            System.out.println("Operation recorded with ID: " + operation.getOperationId());
+        } else {
+            System.out.println("Operation accepted; it will appear in the card history shortly.");
+        }
     }
 
     private void consultCardHistory() throws SQLException {
@@ -172,22 +191,36 @@ public class MainMenu {
             System.out.println("Fraud alerts for card " + cardId + ":");
             for (FraudAlert alert : alerts) {
                 System.out.printf("Alert ID: %d, Level: %s, Description: %s, Date: %s%n",
-                    alert.getAlertId(), alert.getAlertLevel(), alert.getDescription(), alert.getCreationDate());
+                    alert.getAlertId(), alert.getAlertLevel(), ViewUtils.describeAlert(alert), alert.getCreationDate());
             }
         }
     }
 
     private void blockSuspendCard() throws SQLException {
         System.out.println("\n--- Block/Suspend Card ---");
-        int cardId = ConsoleUtils.readInt("Enter card ID: ");
-
         System.out.println("Select action:");
         System.out.println("1. Activate Card");
         System.out.println("2. Suspend Card");
         System.out.println("3. Block Card");
+        System.out.println("4. Block All Cards of a Client");
+        System.out.println("5. Suspend Several Cards");
 
         int action = ConsoleUtils.readInt("Choose action: ");
 
+        if (action == 4) {
+            int clientId = ConsoleUtils.readInt("Enter client ID: ");
+            List<Integer> blocked = cardService.blockCardsByCustomer(clientId);
+            System.out.println("Blocked cards: " + blocked);
+            return;
+        }
+        if (action == 5) {
+            List<Integer> cardIds = readIds("Enter card IDs (comma separated): ");
+            List<Integer> suspended = cardService.suspendCards(cardIds);
+            System.out.println("Suspended cards: " + suspended);
+            return;
+        }
+
+        int cardId = ConsoleUtils.readInt("Enter card ID: ");
         boolean success = switch (action) {
             case 1 -> cardService.activateCard(cardId);
             case 2 -> cardService.suspendCard(cardId);
@@ -202,12 +235,46 @@ public class MainMenu {
         }
     }
 
-    private void generateReports() throws SQLException {
+    private int readCardReference(String prompt) throws SQLException {
+        while (true) {
+            String input = ConsoleUtils.readString(prompt).replace(" ", "");
+            if (input.matches("\\d{12,19}")) {
+                Optional<Card> card = cardService.findCardByNumber(input);
+                if (card.isPresent()) {
+                    return card.get().getCardId();
+                }
+                System.out.println("No card found with this number.");
+            } else if (input.matches("\\d+")) {
+                return Integer.parseInt(input);
+            } else {
+                System.out.println("Enter a card ID or a card number");
+            }
+        }
+    }
+
+    private List<Integer> readIds(String prompt) {
+        String input = ConsoleUtils.readString(prompt);
+        if (input.isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(input.split(","))
+            .map(String::trim)
+            .filter(id -> !id.isEmpty())
+            .map(Integer::parseInt)
+            .toList();
+    }
+
+    private void generateReports() throws SQLException, IOException {
         System.out.println("\n--- Generate Reports ---");
         System.out.println("1. Top 5 Most Used Cards");
         System.out.println("2. Monthly Statistics");
         System.out.println("3. Card Status Distribution");
         System.out.println("4. Critical Alerts");
+        System.out.println("5. Runtime Metrics");
+        System.out.println("6. Fraud Rule Backtest");
+        System.out.println("7. Alerts by Rule (last 90 days)");
+        System.out.println("8. Write Operation Snapshot");
+        System.out.println("9. Reports from Operation Snapshot");
 
         int reportType = ConsoleUtils.readInt("Choose report type: ");
 
@@ -233,34 +300,160 @@ public class MainMenu {
                 System.out.println("Critical Alerts:");
                 criticalAlerts.forEach(alert ->
                     System.out.printf("Alert ID: %d, Card: %d, Description: %s%n",
-                        alert.getAlertId(), alert.getCardId(), alert.getDescription()));
+                        alert.getAlertId(), alert.getCardId(), ViewUtils.describeAlert(alert)));
+            }
+            case 5 -> {
+                System.out.println("Runtime Metrics:");
+                Metrics.snapshot().forEach((name, value) ->
+                    System.out.printf("%s: %d%n", name, value));
+                System.out.println("Cards with the longest lock waits (microseconds):");
+                CardLockManager.getInstance().hottestCards(5).forEach((cardId, waitMicros) ->
+                    System.out.printf("Card ID: %d, Waited: %d%n", cardId, waitMicros));
+            }
+            case 6 -> runBacktest();
+            case 7 -> {
+                var alertsByRule = fraudService.countAlertsByRule(LocalDateTime.now().minusDays(90));
+                System.out.println("Alerts by Rule:");
+                alertsByRule.forEach((rule, count) ->
+                    System.out.printf("%s: %d alerts%n", rule, count));
             }
+            case 8 -> {
+                String path = ConsoleUtils.readString("Snapshot file path: ");
+                long rows = new OperationSnapshotWriter().write(Path.of(path));
+                System.out.println("Wrote " + rows + " operations to " + path);
+            }
+            case 9 -> snapshotReports();
             default -> System.out.println("Invalid report type.");
         }
     }
 
-    private void importExportMenu() throws SQLException {
+    private void snapshotReports() throws IOException {
+        String path = ConsoleUtils.readString("Snapshot file path: ");
+        YearMonth month = YearMonth.parse(ConsoleUtils.readString("Month for statistics (yyyy-MM): "));
+
+        try (OperationSnapshot snapshot = OperationSnapshot.open(Path.of(path))) {
+            System.out.println("Snapshot of " + snapshot.rowCount() + " operations taken " + snapshot.createdAt());
+            System.out.println("Top 5 Most Used Cards:");
+            reportService.getTop5MostUsedCards(snapshot).forEach(entry ->
+                System.out.printf("Card ID: %d, Operations: %d%n", entry.getKey(), entry.getValue()));
+            System.out.println("Totals for " + month + ":");
+            reportService.getMonthlyStatistics(snapshot, month).forEach((type, total) ->
+                System.out.printf("%s: %s%n", type, total));
+            System.out.println("Most Active Locations:");
+            reportService.getMostActiveLocations(snapshot).forEach(entry ->
+                System.out.printf("%s: %d operations%n", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private void runBacktest() throws SQLException, IOException {
+        LocalDate startDate = LocalDate.parse(ConsoleUtils.readString("Enter start date (yyyy-MM-dd)"));
+        LocalDate endDate = LocalDate.parse(ConsoleUtils.readString("Enter end date (yyyy-MM-dd)"));
+        BigDecimal suspiciousAmount = ConsoleUtils.readBigDecimal("Enter suspicious amount threshold");
+        String snapshotPath = ConsoleUtils.readString("Snapshot file (blank to read the database): ");
+
+        FraudRuleEngine ruleEngine = new FraudRuleEngine(
+            suspiciousAmount,
+            FraudRuleEngine.SUSPICIOUS_OPERATION_MINUTES,
+            FraudRuleEngine.MULTIPLE_ATTEMPTS_COUNT,
+            FraudRuleEngine.MULTIPLE_ATTEMPTS_MINUTES
+        );
+        BacktestReport report;
+        if (snapshotPath.isBlank()) {
+            report = backtestService.replay(
+                startDate.atStartOfDay(), endDate.atTime(23, 59, 59), ruleEngine, DatabaseConnection.getPoolSize());
+        } else {
+            try (OperationSnapshot snapshot = OperationSnapshot.open(Path.of(snapshotPath.trim()))) {
+                report = backtestService.replay(snapshot, startDate.atStartOfDay(), endDate.atTime(23, 59, 59),
+                    ruleEngine, Runtime.getRuntime().availableProcessors());
+            }
+        }
+
+        System.out.printf("Replayed %d operations on %d cards in %d ms (%.0f ops/s, %.0fx real time)%n",
+            report.operationsReplayed(), report.cardsReplayed(), report.elapsed().toMillis(),
+            report.operationsPerSecond(), report.speedupOverRealTime());
+        System.out.println("Alerts by rule:");
+        for (FraudRule rule : FraudRule.values()) {
+            System.out.printf("%s: %d alerts on %d cards%n", rule,
+                report.alertsByRule().getOrDefault(rule, 0L), report.cardsFlaggedByRule().getOrDefault(rule, 0L));
+        }
+        System.out.println("Cards flagged by several rules:");
+        report.cardOverlapByRulePair().forEach((pair, count) ->
+            System.out.printf("%s: %d cards%n", pair, count));
+    }
+
+    private void renewExpiringCards() throws SQLException {
+        System.out.println("\n--- Renew Expiring Cards ---");
+        LocalDate startDate = LocalDate.parse(ConsoleUtils.readString("Enter first expiration date (yyyy-MM-dd)"));
+        LocalDate endDate = LocalDate.parse(ConsoleUtils.readString("Enter last expiration date (yyyy-MM-dd)"));
+
+        RenewalReport report = renewalService.renewExpiringCards(startDate, endDate);
+        System.out.printf("Renewed %d cards in %d chunks (%d retried) in %d ms (%.0f cards/s)%n",
+            report.cardsRenewed(), report.chunksCommitted(), report.chunkRetries(),
+            report.elapsed().toMillis(), report.cardsPerSecond());
+    }
+
+    private void archiveOldOperations() throws SQLException, IOException {
+        System.out.println("\n--- Archive Old Operations ---");
+        String days = ConsoleUtils.readString("Archive operations older than how many days (blank for "
+            + archiveService.defaultRetentionDays() + ")");
+        int retentionDays = days.isBlank() ? archiveService.defaultRetentionDays() : Integer.parseInt(days.trim());
+
+        ArchiveReport report = archiveService.archiveOlderThan(retentionDays);
+        System.out.printf("Archived %d operations before %s into %d parts, removed %d from the table in %d ms%n",
+            report.operationsArchived(), report.cutoff().toLocalDate(), report.partsWritten(),
+            report.operationsDeleted(), report.elapsed().toMillis());
+    }
+
+    private void importExportMenu() throws SQLException, IOException {
         System.out.println("\n--- Import/Export ---");
-        System.out.println("1. Import Operations from Excel");
-        System.out.println("2. Import Cards from Excel");
-        System.out.println("3. Export Operations to Excel");
-        System.out.println("4. Export Cards to Excel");
+        System.out.println("1. Import Operations from Excel/CSV");
+        System.out.println("2. Import Cards from Excel/CSV");
+        System.out.println("3. Export Operations (.xlsx, .csv or .csv.gz)");
+        System.out.println("4. Export Cards (.xlsx, .csv or .csv.gz)");
 
         int choice = ConsoleUtils.readInt("Choose option: ");
         String filePath = ConsoleUtils.readString("Enter file path: ");
 
         switch (choice) {
-            case 1 -> importExportService.importOperationsFromExcel(filePath);
-            case 2 -> importExportService.importCardsFromExcel(filePath);
+            case 1 -> printImportReport(importExportService.importOperationsFromExcel(filePath));
+            case 2 -> printImportReport(importExportService.importCardsFromExcel(filePath));
             case 3 -> {
-                // Would need card IDs input
-                importExportService.exportOperationsToExcel(filePath, List.of());
+                List<Integer> cardIds = readIds("Card IDs (comma separated, blank for all): ");
+                List<Integer> clientIds = readIds("Client IDs (comma separated, blank for all): ");
+                String startDate = ConsoleUtils.readString("Start date (yyyy-MM-dd, blank for none): ");
+                String endDate = ConsoleUtils.readString("End date (yyyy-MM-dd, blank for none): ");
+                printExportReport(importExportService.exportOperations(filePath, cardIds, clientIds,
+                    startDate.isBlank() ? null : LocalDate.parse(startDate.trim()).atStartOfDay(),
+                    endDate.isBlank() ? null : LocalDate.parse(endDate.trim()).plusDays(1).atStartOfDay(),
+                    this::printExportProgress));
             }
             case 4 -> {
-                // Would need client IDs input
-                importExportService.exportCardsToExcel(filePath, List.of());
+                List<Integer> cardIds = readIds("Card IDs (comma separated, blank for all): ");
+                List<Integer> clientIds = readIds("Client IDs (comma separated, blank for all): ");
+                printExportReport(importExportService.exportCards(filePath, cardIds, clientIds, this::printExportProgress));
             }
             default -> System.out.println("Invalid option.");
         }
     }
+
+    private void printImportReport(ImportReport report) {
+        if (report.resumedFromOffset() > 0) {
+            System.out.println("Resumed from byte offset " + report.resumedFromOffset());
+        }
+        System.out.printf("Read %d rows: %d imported, %d rejected in %d ms (%.0f rows/s)%n",
+            report.rowsRead(), report.rowsImported(), report.rowsRejected(),
+            report.elapsed().toMillis(), report.rowsPerSecond());
+        if (report.rowsRejected() > 0) {
+            System.out.println("Rejected rows written to " + report.filePath() + ".rejected");
+        }
+    }
+
+    private void printExportProgress(long rows) {
+        System.out.println("Exported " + rows + " rows...");
+    }
+
+    private void printExportReport(ExportReport report) {
+        System.out.printf("Exported %d rows to %s in %d ms (%.0f rows/s)%n",
+            report.rowsExported(), report.filePath(), report.elapsed().toMillis(), report.rowsPerSecond());
+    }
 }
@@ -0,0 +1,194 @@
+package util;
+
+import java.util.Arrays;
+
+// Compressed int set in the style of Roaring bitmaps: ids are split on their high 16 bits into
+// containers that hold either a sorted array of low bits (sparse) or a 65536-bit bitmap (dense).
+// Not thread-safe; callers guard access.
+public class CardIdBitmap {
+    private static final int ARRAY_CONTAINER_MAX = 4_096;
+
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int size = 0;
+
+    public boolean contains(int id) {
+        int index = indexOf(highBits(id));
+        return index >= 0 && containers[index].contains(lowBits(id));
+    }
+
+    public boolean add(int id) {
+        char high = highBits(id);
+        int index = indexOf(high);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, high, new ArrayContainer());
+        }
+
+        Container container = containers[index];
+        if (container.contains(lowBits(id))) {
+            return false;
+        }
+        containers[index] = container.add(lowBits(id));
+        return true;
+    }
+
+    public boolean remove(int id) {
+        int index = indexOf(highBits(id));
+        if (index < 0 || !containers[index].contains(lowBits(id))) {
+            return false;
+        }
+
+        Container container = containers[index].remove(lowBits(id));
+        if (container.cardinality() == 0) {
+            removeContainer(index);
+        } else {
+            containers[index] = container;
+        }
+        return true;
+    }
+
+    public long cardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public void clear() {
+        keys = new char[0];
+        containers = new Container[0];
+        size = 0;
+    }
+
+    private int indexOf(char high) {
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+
+    private void insertContainer(int index, char high, Container container) {
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = high;
+        containers[index] = container;
+        size++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        size--;
+        containers[size] = null;
+    }
+
+    private static char highBits(int id) {
+        return (char) (id >>> 16);
+    }
+
+    private static char lowBits(int id) {
+        return (char) id;
+    }
+
+    private interface Container {
+        boolean contains(char value);
+
+        Container add(char value);
+
+        Container remove(char value);
+
+        int cardinality();
+    }
+
+    private static final class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int cardinality = 0;
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        public Container add(char value) {
+            if (cardinality >= ARRAY_CONTAINER_MAX) {
+                return toBitmap().add(value);
+            }
+
+            int index = -Arrays.binarySearch(values, 0, cardinality, value) - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_CONTAINER_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality--;
+            return this;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private final long[] words = new long[1 << 10];
+        private int cardinality = 0;
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public Container add(char value) {
+            words[value >>> 6] |= 1L << value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public Container remove(char value) {
+            words[value >>> 6] &= ~(1L << value);
+            cardinality--;
+            if (cardinality > ARRAY_CONTAINER_MAX) {
+                return this;
+            }
+
+            ArrayContainer array = new ArrayContainer();
+            for (int word = 0; word < words.length; word++) {
+                long bits = words[word];
+                while (bits != 0) {
+                    array.add((char) (word * 64 + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+            }
+            return array;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package util;
+
+import java.security.SecureRandom;
+
+// Random card numbers under a configurable BIN (issuer prefix) range, ending in a Luhn check digit.
+public class CardNumberGenerator {
+    private static final int DEFAULT_LENGTH = 16;
+
+    private final int binStart;
+    private final int binEnd;
+    private final int binDigits;
+    private final int length;
+    private final SecureRandom random;
+
+    public CardNumberGenerator(int binStart, int binEnd) {
+        this(binStart, binEnd, DEFAULT_LENGTH);
+    }
+
+    public CardNumberGenerator(int binStart, int binEnd, int length) {
+        int binDigits = String.valueOf(binStart).length();
+        if (binStart <= 0 || binEnd < binStart || String.valueOf(binEnd).length() != binDigits) {
+            throw new IllegalArgumentException("BIN range must be positive, ordered and of equal length");
+        }
+        if (length < binDigits + 2 || length > 19) {
+            throw new IllegalArgumentException("Card number length must leave room for an account number and check digit");
+        }
+        this.binStart = binStart;
+        this.binEnd = binEnd;
+        this.binDigits = binDigits;
+        this.length = length;
+        this.random = new SecureRandom();
+    }
+
+    public String generate() {
+        char[] digits = new char[length];
+        String bin = String.valueOf(binStart + random.nextInt(binEnd - binStart + 1));
+        bin.getChars(0, binDigits, digits, 0);
+
+        for (int i = binDigits; i < length - 1; i++) {
+            digits[i] = (char) ('0' + random.nextInt(10));
+        }
+        digits[length - 1] = (char) ('0' + luhnCheckDigit(digits, length - 1));
+        return new String(digits);
+    }
+
+    public static boolean isLuhnValid(String cardNumber) {
+        if (cardNumber == null || cardNumber.length() < 2 || !cardNumber.chars().allMatch(Character::isDigit)) {
+            return false;
+        }
+        char[] digits = cardNumber.toCharArray();
+        return luhnCheckDigit(digits, digits.length - 1) == digits[digits.length - 1] - '0';
+    }
+
+    private static int luhnCheckDigit(char[] digits, int count) {
+        int sum = 0;
+        boolean doubled = true;
+        for (int i = count - 1; i >= 0; i--) {
+            int digit = digits[i] - '0';
+            if (doubled) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+            doubled = !doubled;
+        }
+        return (10 - sum % 10) % 10;
+    }
+}
@@ -1,23 +1,29 @@
 package util;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 
 public class DatabaseConnection {
     private static final String URL = "jdbc:postgresql://localhost:5432/bank_card_management";
     private static final String USER = "gaxown";
     private static final String PASSWORD = "123456";
+    private static final int POOL_SIZE = 8;
 
     private static DatabaseConnection instance = null;
     private Connection connection = null;
 
+    private static final ConcurrentLinkedQueue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+    private static final Semaphore poolPermits = new Semaphore(POOL_SIZE, true);
+    private static final ThreadLocal<Connection> boundConnections = new ThreadLocal<>();
+
     private DatabaseConnection() throws SQLException {
-        try {
-            this.connection = DriverManager.getConnection(URL, USER, PASSWORD);
-        } catch (SQLException e) {
-            throw new SQLException("Failed to connect to database: " + e.getMessage(), e);
-        }
+        this.connection = openConnection();
     }
 
     public static synchronized DatabaseConnection getInstance() throws SQLException {
@@ -27,8 +33,10 @@ public class DatabaseConnection {
         return instance;
     }
 
+    // The connection bound to this thread, if any, otherwise the shared one.
     public Connection getConnection() {
-        return connection;
+        Connection bound = boundConnections.get();
+        return bound != null ? bound : connection;
     }
 
     public void closeConnection() throws SQLException {
@@ -36,4 +44,129 @@ public class DatabaseConnection {
             connection.close();
         }
     }
+
+    // A thread that already has a pooled connection bound gets that one back instead of waiting
+    // for a second: with every pooled connection held by a thread waiting for another, nobody
+    // would ever get one.
+    public static PooledConnection acquirePooledConnection() throws SQLException {
+        Connection bound = boundConnections.get();
+        if (bound != null) {
+            return new PooledConnection(bound, false);
+        }
+
+        try {
+            poolPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        }
+
+        try {
+            Connection pooled;
+            while ((pooled = idleConnections.poll()) != null) {
+                if (!pooled.isClosed()) {
+                    return new PooledConnection(pooled, true);
+                }
+            }
+            return new PooledConnection(openConnection(), true);
+        } catch (SQLException | RuntimeException e) {
+            poolPermits.release();
+            throw e;
+        }
+    }
+
+    public static int getPoolSize() {
+        return POOL_SIZE;
+    }
+
+    private static Connection openConnection() throws SQLException {
+        try {
+            return DriverManager.getConnection(URL, USER, PASSWORD);
+        } catch (SQLException e) {
+            throw new SQLException("Failed to connect to database: " + e.getMessage(), e);
+        }
+    }
+
+    private static Connection withQueryTimeout(Connection connection, int queryTimeoutSeconds) {
+        return (Connection) Proxy.newProxyInstance(DatabaseConnection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+                Object result;
+                try {
+                    result = method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (result instanceof Statement statement) {
+                    statement.setQueryTimeout(queryTimeoutSeconds);
+                }
+                return result;
+            });
+    }
+
+    public static final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final boolean owned;
+        private final boolean borrowedInAutoCommit;
+        private boolean released = false;
+        private boolean bound = false;
+
+        // owned is false for a connection borrowed from the thread's binding; closing it only
+        // ends a transaction the borrower left open and leaves the connection with its owner.
+        // A transaction the owner had already begun is the owner's to finish.
+        private PooledConnection(Connection connection, boolean owned) throws SQLException {
+            this.connection = connection;
+            this.owned = owned;
+            this.borrowedInAutoCommit = !owned && connection.getAutoCommit();
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        // Until close, DAO methods that use the shared connection use this one instead when
+        // called from the current thread. A positive queryTimeoutSeconds is set on every statement
+        // they create, so the driver cancels a query nobody waits for any more and the connection
+        // comes back to the pool.
+        public PooledConnection bindToCurrentThread(int queryTimeoutSeconds) {
+            if (!owned) {
+                return this;
+            }
+            boundConnections.set(queryTimeoutSeconds > 0 ? withQueryTimeout(connection, queryTimeoutSeconds) : connection);
+            bound = true;
+            return this;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (!owned) {
+                if (borrowedInAutoCommit && !connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                return;
+            }
+            if (bound) {
+                boundConnections.remove();
+            }
+
+            try {
+                if (!connection.isClosed()) {
+                    if (!connection.getAutoCommit()) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                    idleConnections.offer(connection);
+                }
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            } finally {
+                poolPermits.release();
+            }
+        }
+    }
 }
@@ -0,0 +1,145 @@
+package util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+// Open-addressing map from long keys to non-negative int values without boxing. Not thread-safe.
+public class LongIntHashMap {
+    private static final int MISSING = -1;
+    private static final long FREE_KEY = 0;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private boolean hasFreeKey = false;
+    private int freeKeyValue = MISSING;
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+    }
+
+    public int get(long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyValue : MISSING;
+        }
+
+        int mask = keys.length - 1;
+        for (int index = mix(key) & mask; ; index = (index + 1) & mask) {
+            if (keys[index] == key) {
+                return values[index];
+            }
+            if (keys[index] == FREE_KEY) {
+                return MISSING;
+            }
+        }
+    }
+
+    public void put(long key, int value) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) {
+                size++;
+            }
+            hasFreeKey = true;
+            freeKeyValue = value;
+            return;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+
+        int mask = keys.length - 1;
+        for (int index = mix(key) & mask; ; index = (index + 1) & mask) {
+            if (keys[index] == FREE_KEY) {
+                keys[index] = key;
+                values[index] = value;
+                size++;
+                return;
+            }
+            if (keys[index] == key) {
+                values[index] = value;
+                return;
+            }
+        }
+    }
+
+    public void remove(long key) {
+        if (key == FREE_KEY) {
+            if (hasFreeKey) {
+                size--;
+            }
+            hasFreeKey = false;
+            freeKeyValue = MISSING;
+            return;
+        }
+
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (keys[index] != key) {
+            if (keys[index] == FREE_KEY) {
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+
+        // Backward-shift deletion keeps probe chains intact without tombstones.
+        size--;
+        int gap = index;
+        for (int next = (gap + 1) & mask; keys[next] != FREE_KEY; next = (next + 1) & mask) {
+            int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = FREE_KEY;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != MISSING;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEachKey(LongConsumer action) {
+        if (hasFreeKey) {
+            action.accept(FREE_KEY);
+        }
+        for (long key : keys) {
+            if (key != FREE_KEY) {
+                action.accept(key);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        size = 0;
+        hasFreeKey = false;
+        freeKeyValue = MISSING;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        size = hasFreeKey ? 1 : 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
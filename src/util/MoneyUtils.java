@@ -0,0 +1,15 @@
+package util;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public class MoneyUtils {
+
+    public static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static BigDecimal fromCents(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+}
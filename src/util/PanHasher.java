@@ -0,0 +1,59 @@
+package util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+
+// Keyed hash of a card number (PAN), so cards can be looked up by number without storing or
+// scanning the number itself. The key comes from the PAN_HASH_KEY environment variable and has no
+// default: a key checked into the source would make the hashes as good as plain numbers. After a
+// key change the stored hashes no longer match; CardNumberIndex.load() notices and rehashes them.
+public class PanHasher {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String KEY_VARIABLE = "PAN_HASH_KEY";
+
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(PanHasher::newMac);
+
+    public static byte[] hash(String cardNumber) {
+        return macs.get().doFinal(cardNumber.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public static String hashHex(String cardNumber) {
+        return HexFormat.of().formatHex(hash(cardNumber));
+    }
+
+    public static long prefix(byte[] hash) {
+        return ByteBuffer.wrap(hash).getLong();
+    }
+
+    public static long prefix(String hashHex) {
+        return Long.parseUnsignedLong(hashHex.substring(0, 16), 16);
+    }
+
+    // Called at startup so a missing key stops the application before any card is hashed.
+    public static void requireKey() {
+        key();
+    }
+
+    private static String key() {
+        String key = System.getenv(KEY_VARIABLE);
+        if (key == null || key.isEmpty()) {
+            throw new IllegalStateException(KEY_VARIABLE + " is not set; card numbers cannot be hashed without it");
+        }
+        return key;
+    }
+
+    private static Mac newMac() {
+        String key = key();
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Card number hashing is unavailable: " + e.getMessage(), e);
+        }
+    }
+}
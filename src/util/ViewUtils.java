@@ -120,7 +120,7 @@ public class ViewUtils {
         System.out.printf("Alert: ID=%d, Level=%s, Card=%d, Date=%s%n",
             alert.alertId(), alert.alertLevel(), alert.cardId(),
             formatDateTime(alert.creationDate()));
-        System.out.println("Description: " + alert.description());
+        System.out.println("Description: " + describeAlert(alert));
     }
 
     public static void displayFraudAlertsList(List<FraudAlert> alerts) {
@@ -140,11 +140,27 @@ public class ViewUtils {
                 alert.alertLevel(),
                 alert.cardId(),
                 formatDateTime(alert.creationDate()),
-                truncate(alert.description(), 30));
+                truncate(describeAlert(alert), 30));
         }
     }
 
-    private static String maskCardNumber(String cardNumber) {
+    public static String describeAlert(FraudAlert alert) {
+        if (alert.description() != null || alert.ruleCode() == null) {
+            return alert.description();
+        }
+
+        List<Integer> operationIds = alert.operationIds();
+        return switch (alert.ruleCode()) {
+            case HIGH_AMOUNT -> String.format("High amount detected: %.2f EUR (threshold %.2f) on operation %s",
+                alert.measuredValue(), alert.thresholdValue(), operationIds);
+            case RAPID_LOCATION_CHANGE -> String.format("Operations %s in different locations within %d minutes (threshold %d)",
+                operationIds, alert.measuredValue().longValue(), alert.thresholdValue().longValue());
+            case MULTIPLE_ATTEMPTS -> String.format("Multiple attempts detected: %d operations %s in %d minutes (threshold %d)",
+                operationIds.size(), operationIds, alert.measuredValue().longValue(), alert.thresholdValue().longValue());
+        };
+    }
+
+    public static String maskCardNumber(String cardNumber) {
         if (cardNumber == null || cardNumber.length() < 4) {
             return cardNumber;
         }
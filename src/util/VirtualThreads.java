@@ -0,0 +1,21 @@
+package util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// Virtual threads are looked up reflectively so the code still builds for Java 17.
+public class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    // One virtual thread per task on Java 21+, otherwise the fallback.
+    public static ExecutorService newPerTaskExecutorOr(Supplier<ExecutorService> fallback) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return fallback.get();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package service;
+
+import dao.CardDAO;
+import entity.Card;
+import entity.Customer;
+import entity.DebitCard;
+import entity.enums.CardStatus;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runnable check, against the configured database, that a suspend never downgrades a block: a
+// card is blocked, then suspended through the single-card and the bulk path, and must still be
+// BLOCKED in the row and in the off-heap state table. Exits with status 1 on failure.
+//
+//   javac -d out $(find src test -name '*.java') && PAN_HASH_KEY=... java -cp out:postgresql.jar service.CardStatusDowngradeCheck
+public class CardStatusDowngradeCheck {
+
+    public static void main(String[] args) throws Exception {
+        CustomerService customerService = new CustomerService();
+        CardService cardService = new CardService();
+        CardDAO cardDAO = new CardDAO();
+
+        Customer customer = customerService.createCustomer("Downgrade Check",
+            "downgrade-check-" + System.currentTimeMillis() + "@example.com", "0000000000");
+        DebitCard card = cardService.createDebitCard(customer.customerId(), new BigDecimal("500.00"));
+        int cardId = card.getCardId();
+
+        List<String> failures = new ArrayList<>();
+        cardService.blockCard(cardId);
+        try {
+            cardService.suspendCard(cardId);
+            failures.add("suspending a blocked card was accepted");
+        } catch (CardStatusConflictException expected) {
+            // refused as it should be
+        }
+        if (!cardService.suspendCards(List.of(cardId)).isEmpty()) {
+            failures.add("bulk suspend changed a blocked card");
+        }
+
+        CardStatus stored = cardDAO.findById(cardId).map(Card::getStatus).orElseThrow();
+        if (stored != CardStatus.BLOCKED) {
+            failures.add("card row is " + stored + " after block then suspend");
+        }
+        CardStatus cached = CardStateTable.getInstance().cardStatus(cardId);
+        if (cached != null && cached != CardStatus.BLOCKED) {
+            failures.add("state table has " + cached + " after block then suspend");
+        }
+        if (!cardService.isCardInactive(cardId)) {
+            failures.add("status registry lets the blocked card through");
+        }
+
+        cardService.deleteCard(cardId);
+        customerService.deleteCustomer(customer.customerId());
+
+        if (!failures.isEmpty()) {
+            failures.forEach(failure -> System.err.println("FAILED: " + failure));
+            System.exit(1);
+        }
+        System.out.println("OK: block then suspend leaves the card blocked");
+    }
+
+    private CardStatusDowngradeCheck() {
+    }
+}
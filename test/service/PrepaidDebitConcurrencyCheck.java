@@ -0,0 +1,151 @@
+package service;
+
+import dao.CardDAO;
+import dao.CardOperationDAO;
+import dao.FraudAlertDAO;
+import entity.CardOperation;
+import entity.Customer;
+import entity.FraudAlert;
+import entity.PrepaidCard;
+import entity.enums.OperationType;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runnable check, against the configured database, that concurrent prepaid debits never overdraw
+// a card: DEBITS threads race to take DEBIT_AMOUNT from a card holding INITIAL_BALANCE through
+// OperationService.recordOperation, which debits the balance and inserts the operation in one
+// transaction. Every approved debit must leave exactly one operation row, and a debit whose
+// insert fails must be rolled back. Exits with status 1 on failure.
+//
+//   javac -d out $(find src test -name '*.java') && PAN_HASH_KEY=... java -cp out:postgresql.jar service.PrepaidDebitConcurrencyCheck
+public class PrepaidDebitConcurrencyCheck {
+    private static final int DEBITS = 500;
+    private static final int THREADS = 64;
+    private static final BigDecimal INITIAL_BALANCE = new BigDecimal("100.00");
+    private static final BigDecimal DEBIT_AMOUNT = new BigDecimal("1.00");
+    private static final String LOCATION = "Overdraft Check";
+
+    public static void main(String[] args) throws Exception {
+        // The race is the point here, so the per-card velocity limit must not turn it away first.
+        System.setProperty("velocity.prepaid.maxOperations", Integer.toString(DEBITS * 2));
+
+        CustomerService customerService = new CustomerService();
+        CardService cardService = new CardService();
+        OperationService operationService = new OperationService();
+        CardDAO cardDAO = new CardDAO();
+        CardOperationDAO operationDAO = new CardOperationDAO();
+
+        Customer customer = customerService.createCustomer("Overdraft Check",
+            "overdraft-check-" + System.currentTimeMillis() + "@example.com", "0000000000");
+        PrepaidCard card = cardService.createPrepaidCard(customer.customerId(), INITIAL_BALANCE);
+        int cardId = card.getCardId();
+        List<String> failures = new ArrayList<>();
+
+        // A row written behind the service's back holds the key, so the debit below succeeds and
+        // then its insert hits the unique index; the debit must go with it.
+        String takenKey = "overdraft-check-" + System.nanoTime();
+        CardOperation seeded = operationDAO.save(new CardOperation(0, LocalDateTime.now(), DEBIT_AMOUNT,
+            OperationType.PURCHASE, LOCATION, cardId, takenKey));
+        try {
+            operationService.recordOperation(cardId, DEBIT_AMOUNT, OperationType.PURCHASE, LOCATION, takenKey);
+            failures.add("operation with a taken idempotency key was recorded");
+        } catch (OperationRefusedException expected) {
+            // refused as it should be
+        }
+        BigDecimal afterFailedInsert = balance(cardDAO, cardId);
+        if (afterFailedInsert.compareTo(INITIAL_BALANCE) != 0) {
+            failures.add("failed insert left the balance at " + afterFailedInsert + " instead of " + INITIAL_BALANCE);
+        }
+        operationDAO.delete(seeded.operationId());
+
+        AtomicInteger approved = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> debits = new ArrayList<>();
+        for (int i = 0; i < DEBITS; i++) {
+            debits.add(executor.submit(() -> {
+                start.await();
+                while (true) {
+                    try {
+                        operationService.recordOperation(cardId, DEBIT_AMOUNT, OperationType.PURCHASE, LOCATION);
+                        approved.incrementAndGet();
+                        return null;
+                    } catch (OperationRefusedException e) {
+                        refused.incrementAndGet();
+                        return null;
+                    } catch (RetryLaterException e) {
+                        // Shed by admission control before any decision; ask again.
+                        Thread.sleep(5);
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> debit : debits) {
+            debit.get();
+        }
+        executor.shutdown();
+
+        BigDecimal finalBalance = balance(cardDAO, cardId);
+        BigDecimal debited = DEBIT_AMOUNT.multiply(BigDecimal.valueOf(approved.get()));
+        int maxApprovals = INITIAL_BALANCE.divideToIntegralValue(DEBIT_AMOUNT).intValueExact();
+        List<CardOperation> operations = operationDAO.findByCardId(cardId);
+
+        if (finalBalance.signum() < 0) {
+            failures.add("balance went negative: " + finalBalance);
+        }
+        if (approved.get() > maxApprovals) {
+            failures.add("expected at most " + maxApprovals + " approved debits, got " + approved.get());
+        }
+        if (INITIAL_BALANCE.subtract(debited).compareTo(finalBalance) != 0) {
+            failures.add("balance " + finalBalance + " does not match " + INITIAL_BALANCE + " minus " + debited);
+        }
+        if (operations.size() != approved.get()) {
+            failures.add(operations.size() + " operation rows for " + approved.get() + " approved debits");
+        }
+
+        // The service must refuse a negative amount rather than credit the card through the debit.
+        try {
+            operationService.recordOperation(cardId, DEBIT_AMOUNT.negate(), OperationType.PURCHASE, LOCATION);
+            failures.add("negative amount was accepted");
+        } catch (IllegalArgumentException expected) {
+            // refused as it should be
+        }
+
+        FraudAlertDAO alertDAO = new FraudAlertDAO();
+        for (FraudAlert alert : alertDAO.findByCardId(cardId)) {
+            alertDAO.delete(alert.getAlertId());
+        }
+        for (CardOperation operation : operations) {
+            operationDAO.delete(operation.operationId());
+        }
+        cardService.deleteCard(cardId);
+        customerService.deleteCustomer(customer.customerId());
+
+        System.out.println(DEBITS + " debits: " + approved.get() + " approved, " + refused.get()
+            + " refused, final balance " + finalBalance);
+        if (!failures.isEmpty()) {
+            failures.forEach(failure -> System.err.println("FAILED: " + failure));
+            System.exit(1);
+        }
+        System.out.println("OK: no overdraft, one operation per approved debit");
+    }
+
+    private static BigDecimal balance(CardDAO cardDAO, int cardId) throws Exception {
+        return cardDAO.findById(cardId)
+            .map(found -> ((PrepaidCard) found).getAvailableBalance())
+            .orElseThrow();
+    }
+
+    private PrepaidDebitConcurrencyCheck() {
+    }
+}